@@ -23,8 +23,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLSocketFactory;
-
 /**
  * Created by sergioalonso on 5/16/17.
  */
@@ -53,7 +51,9 @@ public class AutomaticEventsTest extends AndroidTestCase {
         mMinRequestsLatch = new CountDownLatch(2); // First Time Open and Update
         final RemoteService mockPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+            public byte[] performRequest(Request request) {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
 
                 if (null == params) {
                     if (mDecideResponse == null) {
@@ -221,7 +221,9 @@ public class AutomaticEventsTest extends AndroidTestCase {
 
         final HttpService mpSecondPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+            public byte[] performRequest(Request request) {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
                 if (null == params) {
                     return TestUtils.bytes("{\"automatic_events\": false}");
                 }
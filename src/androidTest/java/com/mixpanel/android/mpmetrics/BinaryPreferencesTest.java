@@ -0,0 +1,163 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class BinaryPreferencesTest extends AndroidTestCase {
+    public void setUp() {
+        mFile = SharedPreferencesLoader.getBinaryPreferencesFile(getContext(), TEST_PREFERENCES);
+        mFile.delete();
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    public void testValuesSurviveReload() {
+        final Set<String> strings = new HashSet<String>(Arrays.asList("one", "two"));
+        final BinaryPreferences prefs = new BinaryPreferences(mFile, null);
+        assertTrue(prefs.edit()
+                .putString("string", "STRING VALUE")
+                .putBoolean("boolean", true)
+                .putInt("int", 42)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putStringSet("set", strings)
+                .putString("removed", "REMOVED")
+                .commit());
+        assertTrue(prefs.edit().remove("removed").commit());
+
+        final BinaryPreferences reloaded = new BinaryPreferences(mFile, null);
+        assertEquals("STRING VALUE", reloaded.getString("string", null));
+        assertTrue(reloaded.getBoolean("boolean", false));
+        assertEquals(42, reloaded.getInt("int", 0));
+        assertEquals(Long.MAX_VALUE, reloaded.getLong("long", 0));
+        assertEquals(1.5f, reloaded.getFloat("float", 0));
+        assertEquals(strings, reloaded.getStringSet("set", null));
+        assertFalse(reloaded.contains("removed"));
+        assertEquals(6, reloaded.getAll().size());
+
+        reloaded.edit().clear().putString("after clear", "VALUE").commit();
+        assertEquals(1, new BinaryPreferences(mFile, null).getAll().size());
+    }
+
+    public void testMigratesFromSharedPreferences() {
+        final SharedPreferences legacy = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        legacy.edit()
+                .putString("events_distinct_id", "EVENTS DISTINCT ID")
+                .putString("super_properties", "{\"thing\": \"superprops\"}")
+                .commit();
+
+        final BinaryPreferences prefs = new BinaryPreferences(mFile, legacy);
+        assertEquals("EVENTS DISTINCT ID", prefs.getString("events_distinct_id", null));
+        assertEquals("{\"thing\": \"superprops\"}", prefs.getString("super_properties", null));
+        assertTrue(legacy.getAll().isEmpty());
+
+        // Only the first load migrates
+        legacy.edit().putString("events_distinct_id", "STALE").commit();
+        final BinaryPreferences reloaded = new BinaryPreferences(mFile, legacy);
+        assertEquals("EVENTS DISTINCT ID", reloaded.getString("events_distinct_id", null));
+    }
+
+    public void testDiscardsIncompleteWrites() throws IOException {
+        final BinaryPreferences prefs = new BinaryPreferences(mFile, null);
+        prefs.edit().putString("first", "FIRST").commit();
+        prefs.edit().putString("second", "SECOND").commit();
+        final long goodLength = mFile.length();
+
+        // As if the process died partway through appending a record
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(goodLength);
+        file.writeInt(1000);
+        file.writeInt(0);
+        file.write(new byte[] {1, 2, 3});
+        file.close();
+
+        final BinaryPreferences reloaded = new BinaryPreferences(mFile, null);
+        assertEquals("FIRST", reloaded.getString("first", null));
+        assertEquals("SECOND", reloaded.getString("second", null));
+        assertEquals(goodLength, mFile.length());
+
+        reloaded.edit().putString("third", "THIRD").commit();
+        assertEquals("THIRD", new BinaryPreferences(mFile, null).getString("third", null));
+    }
+
+    public void testCompaction() {
+        final char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        final BinaryPreferences prefs = new BinaryPreferences(mFile, null);
+        for (int i = 0; i < 500; i++) {
+            prefs.edit().putString("super_properties", i + new String(padding)).commit();
+        }
+
+        // Without compaction, the log would hold every one of the 500 values
+        assertTrue(prefs.getFileLength() < 64 * 1024);
+        assertEquals(prefs.getFileLength(), mFile.length());
+        assertEquals(499 + new String(padding), new BinaryPreferences(mFile, null).getString("super_properties", null));
+    }
+
+    public void testApplyIsVisibleImmediately() {
+        final BinaryPreferences prefs = new BinaryPreferences(mFile, null);
+        final String[] changed = new String[1];
+        final SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                changed[0] = key;
+            }
+        };
+        prefs.registerOnSharedPreferenceChangeListener(listener);
+        prefs.edit().putLong("applied", 7).apply();
+        assertEquals(7, prefs.getLong("applied", 0));
+        assertEquals("applied", changed[0]);
+
+        PersistentIdentity.awaitBackgroundWrites();
+        assertEquals(7, new BinaryPreferences(mFile, null).getLong("applied", 0));
+    }
+
+    public void testFailedMigrationIsRetried() {
+        final SharedPreferences legacy = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        legacy.edit().putString("events_distinct_id", "EVENTS DISTINCT ID").commit();
+
+        // A directory in the way of the temporary file makes the migration fail
+        final File blocker = new File(mFile.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+        try {
+            final BinaryPreferences failed = new BinaryPreferences(mFile, legacy);
+            assertEquals("EVENTS DISTINCT ID", failed.getString("events_distinct_id", null));
+            assertFalse(mFile.exists());
+            assertEquals("EVENTS DISTINCT ID", legacy.getString("events_distinct_id", null));
+        } finally {
+            blocker.delete();
+        }
+
+        final BinaryPreferences migrated = new BinaryPreferences(mFile, legacy);
+        assertEquals("EVENTS DISTINCT ID", migrated.getString("events_distinct_id", null));
+        assertTrue(mFile.exists());
+        assertTrue(legacy.getAll().isEmpty());
+    }
+
+    public void testLoaderSharesInstances() throws Exception {
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final SharedPreferences first = loader.loadBinaryPreferences(getContext(), TEST_PREFERENCES, null).get();
+        final SharedPreferences second = loader.loadBinaryPreferences(getContext(), TEST_PREFERENCES, null).get();
+        final SharedPreferences fromAnotherLoader = new SharedPreferencesLoader().loadBinaryPreferences(getContext(), TEST_PREFERENCES, null).get();
+        assertSame(first, second);
+        assertSame(first, fromAnotherLoader);
+
+        // So an edit through one is seen by the others
+        first.edit().putString("shared", "VALUE").commit();
+        assertEquals("VALUE", second.getString("shared", null));
+    }
+
+    private File mFile;
+    private static final String TEST_PREFERENCES = "TEST BINARY PREFS";
+}
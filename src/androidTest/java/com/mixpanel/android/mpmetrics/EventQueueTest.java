@@ -0,0 +1,214 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class EventQueueTest extends AndroidTestCase {
+
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new EventQueue<Integer>(1, EventQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(8, new EventQueue<Integer>(5, EventQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(64, new EventQueue<Integer>(64, EventQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+    }
+
+    public void testPolicyNames() {
+        assertEquals(EventQueue.OverflowPolicy.DROP_OLDEST, EventQueue.OverflowPolicy.fromName("drop_oldest"));
+        assertEquals(EventQueue.OverflowPolicy.DROP_NEWEST, EventQueue.OverflowPolicy.fromName("DROP_NEWEST"));
+        assertEquals(EventQueue.OverflowPolicy.BLOCK, EventQueue.OverflowPolicy.fromName("block"));
+        assertEquals(EventQueue.OverflowPolicy.DROP_NEWEST, EventQueue.OverflowPolicy.fromName(null));
+        assertEquals(EventQueue.OverflowPolicy.DROP_NEWEST, EventQueue.OverflowPolicy.fromName("no such policy"));
+    }
+
+    public void testFifoAcrossWraparound() {
+        final EventQueue<Integer> queue = new EventQueue<Integer>(4, EventQueue.OverflowPolicy.DROP_NEWEST, 0);
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(queue.offer(round * 3 + i));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(next++), queue.poll());
+            }
+            assertNull(queue.poll());
+        }
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    public void testDropNewest() {
+        final EventQueue<Integer> queue = new EventQueue<Integer>(2, EventQueue.OverflowPolicy.DROP_NEWEST, 0);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    public void testDropOldest() {
+        final EventQueue<Integer> queue = new EventQueue<Integer>(2, EventQueue.OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    public void testBlockTimesOut() {
+        final EventQueue<Integer> queue = new EventQueue<Integer>(1, EventQueue.OverflowPolicy.BLOCK, 50);
+        assertTrue(queue.offer(1));
+        final long start = System.nanoTime();
+        assertFalse(queue.offer(2));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(1), queue.poll());
+    }
+
+    public void testBlockWaitsForConsumer() throws InterruptedException {
+        final EventQueue<Integer> queue = new EventQueue<Integer>(1, EventQueue.OverflowPolicy.BLOCK, 5000);
+        assertTrue(queue.offer(1));
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                queue.poll();
+            }
+        };
+        consumer.start();
+        assertTrue(queue.offer(2));
+        consumer.join();
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    public void testConcurrentProducersDeliverExactlyOnce() throws InterruptedException {
+        final int producerCount = 8;
+        final int perProducer = 20000;
+        final EventQueue<Integer> queue = new EventQueue<Integer>(256, EventQueue.OverflowPolicy.BLOCK, 60 * 1000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int base = p * perProducer;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(base + i);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        start.countDown();
+        final int[] lastSeen = new int[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            lastSeen[p] = -1;
+        }
+        final Set<Integer> seen = new HashSet<Integer>();
+        final long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (seen.size() < producerCount * perProducer && System.currentTimeMillis() < deadline) {
+            final Integer value = queue.poll();
+            if (null == value) {
+                continue;
+            }
+            assertTrue("Duplicate delivery of " + value, seen.add(value));
+            // Each producer's elements come out in the order it offered them
+            final int producer = value / perProducer;
+            assertTrue(value % perProducer > lastSeen[producer]);
+            lastSeen[producer] = value % perProducer;
+        }
+
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(producerCount * perProducer, seen.size());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    public void testTrackThroughEventQueue() throws InterruptedException, JSONException {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter dbMock = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic && table == Table.EVENTS) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.EventQueueCapacity", 16);
+        metaData.putString("com.mixpanel.android.MPConfig.EventQueueOverflowPolicy", "block");
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        assertEquals(16, config.getEventQueueCapacity());
+        assertEquals(EventQueue.OverflowPolicy.BLOCK, config.getEventQueueOverflowPolicy());
+
+        final AnalyticsMessages analyticsMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbMock;
+            }
+        };
+
+        final int producerCount = 4;
+        final int perProducer = 50;
+        final Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        analyticsMessages.eventsMessage(new AnalyticsMessages.EventDescription(
+                                "event " + producer + " " + i, new JSONObject(), "TEST TOKEN"));
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+
+        final Set<String> names = new HashSet<String>();
+        for (int i = 0; i < producerCount * perProducer; i++) {
+            final JSONObject found = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(found);
+            assertTrue(names.add(found.getString("event")));
+        }
+        assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private static final int POLL_WAIT_SECONDS = 10;
+}
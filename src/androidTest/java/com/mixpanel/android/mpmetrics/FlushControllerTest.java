@@ -0,0 +1,103 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+public class FlushControllerTest extends AndroidTestCase {
+    public void setUp() {
+        mController = new FlushController(MIN_INTERVAL, MAX_INTERVAL, FULL_BATCH);
+        mNow = 1000000;
+    }
+
+    public void testIdleWaitsForMaxInterval() {
+        mController.update(mNow);
+        assertEquals(MAX_INTERVAL, mController.getFlushInterval());
+        assertEquals(FULL_BATCH, mController.getBulkUploadLimit());
+        assertEquals(FULL_BATCH, mController.getBatchSize(KEY));
+    }
+
+    public void testSteadyTrafficFillsBatches() {
+        // One message a second fills a batch of 64 in about 64 seconds
+        enqueue(600, 1000);
+        assertTrue(mController.update(mNow));
+        final long interval = mController.getFlushInterval();
+        assertTrue("Interval was " + interval, interval > 58 * 1000 && interval < 70 * 1000);
+        assertEquals(60, mController.getEnqueueRatePerMinute(mNow), 1);
+
+        // Once traffic stops, messages stop waiting for a full batch
+        mNow += 10 * 60 * 1000;
+        assertTrue(mController.update(mNow));
+        assertEquals(MAX_INTERVAL, mController.getFlushInterval());
+    }
+
+    public void testBurstsFlushQuickly() {
+        enqueue(1000, 10);
+        mController.update(mNow);
+        assertEquals(MIN_INTERVAL, mController.getFlushInterval());
+    }
+
+    public void testSlowUploadsStretchInterval() {
+        enqueue(600, 1000);
+        for (int i = 0; i < 20; i++) {
+            mController.onBatchSent(KEY, 5000, true);
+        }
+        mController.update(mNow);
+        assertTrue(mController.getFlushInterval() >= 20 * 5000 - 1000);
+        assertEquals(5000, mController.getBatchLatency(), 1);
+    }
+
+    public void testFailuresShrinkBatches() {
+        enqueue(600, 1000);
+        mController.update(mNow);
+        mController.onBatchSent(KEY, 100, false);
+        assertEquals(FULL_BATCH / 2, mController.getBatchSize(KEY));
+        mController.onBatchSent(KEY, 100, false);
+        mController.onBatchSent(KEY, 100, false);
+        mController.onBatchSent(KEY, 100, false);
+        assertEquals(FULL_BATCH / 16, mController.getBatchSize(KEY));
+        assertTrue(mController.getSuccessRate() < 0.5);
+
+        // Mostly failing uploads aren't worth retrying often
+        assertTrue(mController.update(mNow));
+        assertEquals(MAX_INTERVAL, mController.getFlushInterval());
+
+        for (int i = 0; i < 20; i++) {
+            mController.onBatchSent(KEY, 100, true);
+        }
+        assertEquals(FULL_BATCH, mController.getBatchSize(KEY));
+        assertTrue(mController.getSuccessRate() > 0.9);
+    }
+
+    public void testEndpointsAreIndependent() {
+        enqueue(600, 1000);
+        mController.update(mNow);
+        final long interval = mController.getFlushInterval();
+        for (int i = 0; i < 4; i++) {
+            mController.onBatchSent(KEY, 100, true);
+            mController.onBatchSent(OTHER_KEY, 100, false);
+        }
+
+        // Only the failing endpoint gets smaller batches
+        assertEquals(FULL_BATCH, mController.getBatchSize(KEY));
+        assertEquals(FULL_BATCH / 16, mController.getBatchSize(OTHER_KEY));
+        assertEquals(FULL_BATCH / 16, mController.getMinBatchSize());
+
+        // And flushes to the healthy one aren't put off
+        assertTrue(mController.update(mNow));
+        assertEquals(interval, mController.getFlushInterval());
+    }
+
+    private void enqueue(int count, long spacing) {
+        for (int i = 0; i < count; i++) {
+            mNow += spacing;
+            mController.onEnqueued(mNow);
+        }
+    }
+
+    private FlushController mController;
+    private long mNow;
+    private static final long MIN_INTERVAL = 15 * 1000;
+    private static final long MAX_INTERVAL = 5 * 60 * 1000;
+    private static final int FULL_BATCH = 64;
+    private static final String KEY = RetryScheduler.key("https://api.mixpanel.com/track/", "TOKEN");
+    private static final String OTHER_KEY = RetryScheduler.key("https://api.mixpanel.com/engage/", "TOKEN");
+}
@@ -2,30 +2,38 @@ package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.Base64FormParameter;
+import com.mixpanel.android.util.FlushStatsListener;
 import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.RemoteTransport;
 import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.TextFormParameter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLSocketFactory;
-
 public class HttpTest extends AndroidTestCase {
     private Future<SharedPreferences> mMockPreferences;
     private List<Object> mFlushResults, mDecideResults;
@@ -51,8 +59,10 @@ public class HttpTest extends AndroidTestCase {
 
         final RemoteService mockPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory)
+            public byte[] performRequest(Request request)
                     throws ServiceUnavailableException, IOException {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
                 try {
                     if (null == params) {
                         mDecideCalls.put(endpointUrl);
@@ -85,6 +95,8 @@ public class HttpTest extends AndroidTestCase {
                         throw (ServiceUnavailableException)obj;
                     } else if (obj instanceof SocketTimeoutException) {
                         throw (SocketTimeoutException)obj;
+                    } else if (obj instanceof OutOfMemoryError) {
+                        throw (OutOfMemoryError)obj;
                     }
 
                     final String jsonData = Base64Coder.decodeString(params.get("data").toString());
@@ -150,6 +162,13 @@ public class HttpTest extends AndroidTestCase {
             protected MPConfig getConfig(Context context) {
                 return config;
             }
+
+            @Override
+            protected RetryScheduler makeRetryScheduler() {
+                // Base and max delays are equal, so there is no jitter and every backoff is a
+                // predictable minute, longer than the flush interval waits in these tests.
+                return new RetryScheduler(60 * 1000, 60 * 1000, new Random(0));
+            }
         };
 
         mMetrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Message Queuing") {
@@ -165,6 +184,7 @@ public class HttpTest extends AndroidTestCase {
             runBasicSucceed();
             runIOException();
             runMalformedURLException();
+            runOutOfMemoryError();
             runServiceUnavailableException(null);
             runServiceUnavailableException("10");
             runServiceUnavailableException("40");
@@ -176,6 +196,617 @@ public class HttpTest extends AndroidTestCase {
         }
     }
 
+    public void testBase64FormParameter() throws IOException {
+        final String[] texts = {"", "a", "ab", "abc", "[{\"event\":\"Hello World\"}]", "caf\u00e9 \u4e2d\u6587 \ud83d\ude00"};
+        for (String text : texts) {
+            final String expectedBase64 = Base64Coder.encodeString(text);
+            final String expectedBody = new Uri.Builder().appendQueryParameter("data", expectedBase64).build().getEncodedQuery().substring("data=".length());
+
+            final Base64FormParameter parameter = new Base64FormParameter(text);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            parameter.writeEncoded(out);
+
+            assertEquals(expectedBase64, parameter.toString());
+            assertEquals(expectedBody, out.toString("UTF-8"));
+            assertEquals(expectedBody.length(), parameter.getEncodedLength());
+        }
+    }
+
+    public void testTextFormParameter() throws IOException {
+        final String[] texts = {"", "[{\"event\":\"Hello World\",\"properties\":{\"a+b\":\"c/d=e&f\"}}]", "caf\u00e9 \u4e2d\u6587 \ud83d\ude00"};
+        for (String text : texts) {
+            final String expectedBody = Uri.encode(text);
+
+            final TextFormParameter parameter = new TextFormParameter(text);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            parameter.writeEncoded(out);
+
+            assertEquals(text, parameter.toString());
+            assertEquals(expectedBody, out.toString("UTF-8"));
+            assertEquals(expectedBody.length(), parameter.getEncodedLength());
+        }
+    }
+
+    public void testConnectionReuse() throws Exception {
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        try {
+            final HttpService service = new HttpService();
+            for (int i = 0; i < 20; i++) {
+                final Map<String, Object> params = new HashMap<String, Object>();
+                params.put("data", new Base64FormParameter("[{\"event\":\"Reuse " + i + "\"}]"));
+                final byte[] response = service.performRequest(server.getUrl("/track"), params, null);
+                assertEquals("1\n", new String(response, "UTF-8"));
+            }
+            assertEquals(20, server.getRequestCount());
+            assertTrue(server.getConnectionCount() < 20);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testCompressionFallback() throws Exception {
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        try {
+            final HttpService service = new HttpService();
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", new TextFormParameter("[{\"event\":\"Compressed\"}]"));
+
+            // A bad or oversized batch is an ordinary failure, not a reason to stop compressing
+            server.failRequests("/track", 1, 400, null);
+            try {
+                service.performCompressedRequest(server.getUrl("/track"), params, null, null);
+                fail("Expected the 400 to fail the request");
+            } catch (final IOException e) {
+                // expected
+            }
+            server.failRequests("/track", 1, 413, null);
+            try {
+                service.performCompressedRequest(server.getUrl("/track"), params, null, null);
+                fail("Expected the 413 to fail the request");
+            } catch (final IOException e) {
+                // expected
+            }
+            assertEquals(2, server.getRequestCount("/track"));
+            assertEquals("1\n", new String(service.performCompressedRequest(server.getUrl("/track"), params, null, null), "UTF-8"));
+            assertEquals(3, server.getRequestCount("/track"));
+
+            // 415 sends the request again uncompressed
+            server.failRequests("/engage", 1, 415, null);
+            assertEquals("1\n", new String(service.performCompressedRequest(server.getUrl("/engage"), params, null, null), "UTF-8"));
+            assertEquals(2, server.getRequestCount("/engage"));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSubmittedRequests() throws Exception {
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.setResponseDelay(20);
+        try {
+            // The pooled service, against a baseline that starts a thread for each request.
+            // Other RemoteTransport implementations can be compared the same way.
+            final double pooled = measureTransport("HttpService", new HttpService(), server, 100);
+            assertTrue(server.getConnectionCount() <= 5);
+
+            final RemoteTransport unpooled = new HttpService() {
+                @Override
+                public void submitRequest(final RemoteTransport.Request request, final RemoteTransport.ResponseCallback callback) {
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                callback.onResponse(performRequest(request.getEndpointUrl(), request.getParams(), request.getSocketFactory()));
+                            } catch (final RemoteService.ServiceUnavailableException e) {
+                                callback.onFailure(e);
+                            } catch (final IOException e) {
+                                callback.onFailure(e);
+                            }
+                        }
+                    }).start();
+                }
+            };
+            final double unpooledRate = measureTransport("Thread per request", unpooled, server, 100);
+            assertTrue(pooled > 0);
+            assertTrue(unpooledRate > 0);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRequestDeadline() throws Exception {
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.setResponseDelay(2000);
+        try {
+            final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+            final RemoteTransport.ResponseCallback callback = new RemoteTransport.ResponseCallback() {
+                @Override
+                public void onResponse(byte[] response) {
+                    results.add(response);
+                }
+
+                @Override
+                public void onFailure(Exception failure) {
+                    results.add(failure);
+                }
+            };
+
+            // A deadline shorter than the server's response time fails the request, however
+            // long the read timeout is
+            final HttpService service = new HttpService(2000, 30000);
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", new Base64FormParameter("[{\"event\":\"Deadline\"}]"));
+            final long start = SystemClock.elapsedRealtime();
+            service.submitRequest(new RemoteTransport.Request(server.getUrl("/track"), params, null, false, null, start + 500), callback);
+            final Object failure = results.poll(10, TimeUnit.SECONDS);
+            assertTrue(failure instanceof SocketTimeoutException);
+            assertTrue(SystemClock.elapsedRealtime() - start < 2000);
+
+            // So does a deadline that has already passed, without sending anything
+            final int requests = server.getRequestCount();
+            service.submitRequest(new RemoteTransport.Request(server.getUrl("/track"), params, null, false, null, start), callback);
+            assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof SocketTimeoutException);
+
+            // And a long enough one doesn't
+            service.submitRequest(new RemoteTransport.Request(server.getUrl("/track"), params, null, true, null,
+                    SystemClock.elapsedRealtime() + 5000), callback);
+            final Object response = results.poll(10, TimeUnit.SECONDS);
+            assertTrue(response instanceof byte[]);
+            assertEquals("1\n", new String((byte[]) response, "UTF-8"));
+            assertEquals(requests + 1, server.getRequestCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testEveryRequestReachesRequestHook() throws Exception {
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        try {
+            final List<RemoteTransport.Request> seen = new ArrayList<RemoteTransport.Request>();
+            final HttpService service = new HttpService() {
+                @Override
+                public byte[] performRequest(Request request) throws ServiceUnavailableException, IOException {
+                    synchronized (seen) {
+                        seen.add(request);
+                    }
+                    return super.performRequest(request);
+                }
+            };
+            final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+            final RemoteTransport.ResponseCallback callback = new RemoteTransport.ResponseCallback() {
+                @Override
+                public void onResponse(byte[] response) {
+                    results.add(response);
+                }
+
+                @Override
+                public void onFailure(Exception failure) {
+                    results.add(failure);
+                }
+            };
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", new Base64FormParameter("[{\"event\":\"Hook\"}]"));
+
+            service.performRequest(server.getUrl("/track"), params, null);
+            service.performCompressedRequest(server.getUrl("/track"), params, null, null);
+            service.submitRequest(new RemoteTransport.Request(server.getUrl("/track"), params, null, true, null,
+                    SystemClock.elapsedRealtime() + 5000, "batch-key"), callback);
+            assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof byte[]);
+
+            synchronized (seen) {
+                assertEquals(3, seen.size());
+                assertFalse(seen.get(0).isCompressed());
+                assertTrue(seen.get(1).isCompressed());
+                assertTrue(seen.get(2).hasDeadline());
+                assertEquals("batch-key", seen.get(2).getIdempotencyKey());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testPipelinedDrain() throws Exception {
+        final String token = "Drain Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.setResponseDelay(50);
+        try {
+            final Bundle metaData = new Bundle();
+            metaData.putInt("com.mixpanel.android.MPConfig.MaxInFlightBatches", 4);
+            final MPConfig config = loopbackConfig(server, metaData);
+
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "DrainTestDB", config);
+            adapter.deleteDB();
+            final List<JSONObject> backlog = new ArrayList<JSONObject>();
+            for (int i = 0; i < 1000; i++) {
+                backlog.add(new JSONObject().put("event", "Backlog " + i));
+            }
+            adapter.addJSONBatch(backlog, token, MPDbAdapter.Table.EVENTS, false);
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+            };
+
+            final long start = SystemClock.elapsedRealtime();
+            messages.postToServer(new AnalyticsMessages.FlushDescription(token));
+            while (adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true) > 0 && SystemClock.elapsedRealtime() - start < 30000) {
+                Thread.sleep(20);
+            }
+            final long drainMillis = SystemClock.elapsedRealtime() - start;
+            Log.i("MixpanelAPI.HttpTest", "Drained 1000 events in " + drainMillis + " ms over " + server.getConnectionCount() + " connections");
+
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+            assertEquals(20, server.getRequestCount());
+            assertTrue(server.getConnectionCount() <= 4);
+            adapter.deleteDB();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testHardKillDuringFlush() throws Exception {
+        final String token = "Kill Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.setResponseDelay(1000);
+        try {
+            final MPConfig config = loopbackConfig(server, new Bundle());
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "KillTestDB", config);
+            adapter.deleteDB();
+            adapter.addJSON(new JSONObject().put("event", "Killed"), token, MPDbAdapter.Table.EVENTS, false);
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+            };
+
+            // The upload is still waiting for its response when the worker deletes the database,
+            // and must not recreate it when the response arrives
+            messages.postToServer(new AnalyticsMessages.FlushDescription(token));
+            Thread.sleep(300);
+            messages.hardKill();
+            Thread.sleep(2000);
+            assertEquals(1, server.getRequestCount());
+            assertFalse(getContext().getDatabasePath("KillTestDB").exists());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testFlushDoesNotBlockEnqueue() throws Exception {
+        final String token = "Slow Flush Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.setResponseDelay(3000);
+        try {
+            final MPConfig config = loopbackConfig(server, new Bundle());
+            final BlockingQueue<String> stored = new LinkedBlockingQueue<String>();
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "SlowFlushTestDB", config) {
+                @Override
+                public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+                    stored.add(j.optString("event"));
+                    return super.addJSON(j, token, table, isAutomaticRecord);
+                }
+            };
+            adapter.deleteDB();
+            adapter.addJSON(new JSONObject().put("event", "Queued"), token, MPDbAdapter.Table.EVENTS, false);
+            assertEquals("Queued", stored.poll());
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+            };
+
+            messages.postToServer(new AnalyticsMessages.FlushDescription(token, false));
+            while (server.getRequestCount() == 0) {
+                Thread.sleep(20);
+            }
+
+            // The upload is still waiting for its response, the new event is stored anyway
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("During Flush", new JSONObject(), token));
+            assertEquals("During Flush", stored.poll(1000, TimeUnit.MILLISECONDS));
+            assertEquals(1, server.getRequestCount());
+            adapter.deleteDB();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRetryStormOnOneEndpoint() throws Exception {
+        final String token = "Retry Storm Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        server.failRequests("/track", Integer.MAX_VALUE, 503, null);
+        try {
+            final MPConfig config = loopbackConfig(server, new Bundle());
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "RetryStormTestDB", config);
+            adapter.deleteDB();
+            final List<JSONObject> events = new ArrayList<JSONObject>();
+            for (int i = 0; i < 120; i++) {
+                events.add(new JSONObject().put("event", "Storm " + i));
+            }
+            adapter.addJSONBatch(events, token, MPDbAdapter.Table.EVENTS, false);
+            final List<JSONObject> people = new ArrayList<JSONObject>();
+            for (int i = 0; i < 10; i++) {
+                people.add(new JSONObject().put("$distinct_id", "Storm Person " + i).put("$token", token));
+            }
+            adapter.addJSONBatch(people, token, MPDbAdapter.Table.PEOPLE, false);
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+
+                @Override
+                protected RetryScheduler makeRetryScheduler() {
+                    return new RetryScheduler(100, 400, new Random(0));
+                }
+            };
+
+            // Flush over and over for two seconds while /track is down
+            final long start = SystemClock.elapsedRealtime();
+            while (SystemClock.elapsedRealtime() - start < 2000) {
+                messages.postToServer(new AnalyticsMessages.FlushDescription(token, false));
+                Thread.sleep(10);
+            }
+
+            // /engage isn't held up by /track failing, and /track was only retried after backing off
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.PEOPLE, token, true));
+            assertEquals(1, server.getRequestCount("/engage"));
+            assertEquals(120, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+            final int stormRequests = server.getRequestCount("/track");
+            assertTrue(stormRequests >= 2);
+            assertTrue("Sent " + stormRequests + " requests during the storm", stormRequests <= 2000 / 100 + 1);
+
+            // Once /track recovers, the retry delivers everything without another flush
+            server.failRequests("/track", 0, 503, null);
+            final long recovery = SystemClock.elapsedRealtime();
+            while (adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true) > 0 && SystemClock.elapsedRealtime() - recovery < 5000) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+            // A probe with the first batch, then the other two. One more probe may have failed
+            // between reading the count and ending the storm.
+            final int recoveryRequests = server.getRequestCount("/track") - stormRequests;
+            assertTrue(recoveryRequests == 3 || recoveryRequests == 4);
+            adapter.deleteDB();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testIdempotentRetryAfterTimeout() throws Exception {
+        final String token = "Idempotent Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        // The server takes the first batch, but answers after the client has given up on it
+        server.setResponseDelay(1500);
+        try {
+            final Bundle metaData = new Bundle();
+            metaData.putBoolean("com.mixpanel.android.MPConfig.IdempotentUploads", true);
+            metaData.putInt("com.mixpanel.android.MPConfig.ReadTimeout", 300);
+            final MPConfig config = loopbackConfig(server, metaData);
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "IdempotentTestDB", config);
+            adapter.deleteDB();
+            final List<JSONObject> events = new ArrayList<JSONObject>();
+            for (int i = 0; i < 10; i++) {
+                events.add(new JSONObject().put("event", "Idempotent " + i));
+            }
+            adapter.addJSONBatch(events, token, MPDbAdapter.Table.EVENTS, false);
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+
+                @Override
+                protected RetryScheduler makeRetryScheduler() {
+                    return new RetryScheduler(100, 400, new Random(0));
+                }
+            };
+
+            messages.postToServer(new AnalyticsMessages.FlushDescription(token, false));
+            final long start = SystemClock.elapsedRealtime();
+            while (server.getRequestCount("/track") == 0 && SystemClock.elapsedRealtime() - start < 5000) {
+                Thread.sleep(10);
+            }
+            server.setResponseDelay(0);
+            while (adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true) > 0 && SystemClock.elapsedRealtime() - start < 10000) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+
+            // The retry sends the same bytes with the same key, so the server can drop it
+            final List<String> bodies = server.getRequestBodies("/track");
+            final List<String> keys = server.getIdempotencyKeys("/track");
+            assertEquals(2, bodies.size());
+            assertEquals(bodies.get(0), bodies.get(1));
+            assertNotNull(keys.get(0));
+            assertEquals(keys.get(0), keys.get(1));
+            adapter.deleteDB();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testFlushOnReconnect() throws Exception {
+        final String token = "Reconnect Token";
+        final TestUtils.LoopbackServer server = new TestUtils.LoopbackServer();
+        try {
+            final Bundle metaData = new Bundle();
+            metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", 60 * 1000);
+            metaData.putBoolean("com.mixpanel.android.MPConfig.NetworkAwareFlush", true);
+            metaData.putInt("com.mixpanel.android.MPConfig.UnmeteredBacklogThreshold", 50);
+            final MPConfig config = loopbackConfig(server, metaData);
+            final BlockingQueue<Long> deliveries = new LinkedBlockingQueue<Long>();
+            config.setFlushStatsListener(new FlushStatsListener() {
+                @Override
+                public void onDeliveredAfterReconnect(String endpointUrl, long millisSinceReconnect) {
+                    deliveries.add(millisSinceReconnect);
+                }
+
+                @Override
+                public void onFlushScheduleChanged(long flushIntervalMillis, int batchSize, double enqueuedPerMinute,
+                                                   long batchLatencyMillis, double successRate) {
+                }
+            });
+
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "ReconnectTestDB", config);
+            adapter.deleteDB();
+
+            // Connectivity is whatever the test says it is
+            final ConnectivityMonitor monitor = new ConnectivityMonitor(getContext()) {
+                @Override
+                protected void refresh() {
+                }
+            };
+            monitor.setState(false, false);
+
+            final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+                @Override
+                protected MPDbAdapter makeDbAdapter(Context context) {
+                    return adapter;
+                }
+
+                @Override
+                protected MPConfig getConfig(Context context) {
+                    return config;
+                }
+
+                @Override
+                protected ConnectivityMonitor makeConnectivityMonitor() {
+                    return monitor;
+                }
+            };
+
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("Offline", new JSONObject(), token));
+            Thread.sleep(500);
+            assertEquals(1, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+            assertEquals(0, server.getRequestCount());
+
+            // Sent on reconnect, long before the flush interval
+            final long reconnect = SystemClock.elapsedRealtime();
+            monitor.setState(true, false);
+            final Long reported = deliveries.poll(5000, TimeUnit.MILLISECONDS);
+            assertNotNull(reported);
+            final long deliveryMillis = SystemClock.elapsedRealtime() - reconnect;
+            Log.i("MixpanelAPI.HttpTest", "Delivered " + deliveryMillis + " ms after reconnecting (" + reported + " ms reported)");
+            assertTrue(reported <= deliveryMillis);
+            assertEquals(1, server.getRequestCount("/track"));
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+
+            // A large backlog waits for an unmetered network
+            final List<JSONObject> backlog = new ArrayList<JSONObject>();
+            for (int i = 0; i < 60; i++) {
+                backlog.add(new JSONObject().put("event", "Backlog " + i));
+            }
+            adapter.addJSONBatch(backlog, token, MPDbAdapter.Table.EVENTS, false);
+            messages.postToServer(new AnalyticsMessages.FlushDescription(token, false));
+            Thread.sleep(500);
+            assertEquals(1, server.getRequestCount("/track"));
+            assertEquals(60, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+
+            monitor.setState(true, true);
+            final long start = SystemClock.elapsedRealtime();
+            while (adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true) > 0 && SystemClock.elapsedRealtime() - start < 5000) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, token, true));
+            adapter.deleteDB();
+        } finally {
+            server.close();
+        }
+    }
+
+    // Submits requests to the loopback server from one thread, as fast as the service accepts them,
+    // and returns how many completed per second. All of them must succeed.
+    private double measureTransport(String name, RemoteTransport service, TestUtils.LoopbackServer server, int requests)
+            throws InterruptedException {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+        final RemoteTransport.ResponseCallback callback = new RemoteTransport.ResponseCallback() {
+            @Override
+            public void onResponse(byte[] response) {
+                results.add(null == response ? new Object() : response);
+            }
+
+            @Override
+            public void onFailure(Exception failure) {
+                results.add(failure);
+            }
+        };
+
+        final int connectionsBefore = server.getConnectionCount();
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < requests; i++) {
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", new TextFormParameter("[{\"event\":\"Load " + i + "\"}]"));
+            service.submitRequest(new RemoteTransport.Request(server.getUrl("/track"), params, null, false, null,
+                    RemoteTransport.Request.NO_DEADLINE), callback);
+        }
+        for (int i = 0; i < requests; i++) {
+            final Object result = results.poll(30, TimeUnit.SECONDS);
+            assertTrue(name + " failed with " + result, result instanceof byte[]);
+        }
+        final long millis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        final double perSecond = requests * 1000.0 / millis;
+        Log.i("MixpanelAPI.HttpTest", name + ": " + requests + " requests in " + millis + " ms (" + perSecond + "/s) over " +
+                (server.getConnectionCount() - connectionsBefore) + " connections");
+        return perSecond;
+    }
+
+    private MPConfig loopbackConfig(final TestUtils.LoopbackServer server, Bundle metaData) {
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        return new MPConfig(metaData, getContext()) {
+            @Override
+            public String getDecideEndpoint() {
+                return server.getUrl("/decide");
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl("/track");
+            }
+
+            @Override
+            public String getPeopleEndpoint() {
+                return server.getUrl("/engage");
+            }
+
+            @Override
+            public String getGroupsEndpoint() {
+                return server.getUrl("/groups");
+            }
+        };
+    }
+
     public void runBasicSucceed() throws InterruptedException {
         mCleanupCalls.clear();
         mMetrics.track(SUCCEED_TEXT, null);
@@ -246,6 +877,26 @@ public class HttpTest extends AndroidTestCase {
         assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
     }
 
+    public void runOutOfMemoryError() throws InterruptedException {
+        mCleanupCalls.clear();
+        mFlushResults.add(new OutOfMemoryError());
+        mMetrics.track(SUCCEED_TEXT, null);
+
+        waitForFlushInternval();
+
+        // Sending the same batch again would run out of memory again, so it is dropped
+        assertEquals(null, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(1, mCleanupCalls.size());
+
+        mMetrics.track(SUCCEED_TEXT, null);
+
+        waitForFlushInternval();
+
+        assertEquals(2, mCleanupCalls.size());
+        assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(null, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+    }
+
     private void runServiceUnavailableException(String retryAfterSeconds) throws InterruptedException {
         mCleanupCalls.clear();
         mFlushResults.add(new RemoteService.ServiceUnavailableException("", retryAfterSeconds));
@@ -26,12 +26,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLSocketFactory;
-
 public class MixpanelBasicTest extends AndroidTestCase {
 
     @Override
@@ -118,6 +118,198 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testAddJSONBatch() throws JSONException {
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchTestDB");
+        adapter.deleteDB();
+
+        List<JSONObject> batch = new ArrayList<JSONObject>();
+        for (int i = 0; i < 10; i++) {
+            JSONObject record = new JSONObject();
+            record.put("seq", i);
+            batch.add(record);
+        }
+
+        assertEquals(1, adapter.addJSON(new JSONObject().put("seq", -1), "ATOKEN", MPDbAdapter.Table.EVENTS, false));
+        assertEquals(11, adapter.addJSONBatch(batch, "ATOKEN", MPDbAdapter.Table.EVENTS, false));
+        assertEquals(10, adapter.addJSONBatch(batch, "ANOTHERTOKEN", MPDbAdapter.Table.EVENTS, false));
+
+        String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true);
+        JSONArray events = new JSONArray(eventsData[1]);
+        assertEquals(11, events.length());
+        for (int i = 0; i < events.length(); i++) {
+            assertEquals(i - 1, events.getJSONObject(i).getInt("seq"));
+        }
+
+        adapter.deleteDB();
+    }
+
+    public void testQueueDepthCounters() throws JSONException {
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "QueueDepthTestDB");
+        adapter.deleteDB();
+
+        for (int i = 0; i < 5; i++) {
+            adapter.addJSON(new JSONObject().put("seq", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+        for (int i = 0; i < 3; i++) {
+            adapter.addJSON(new JSONObject().put("seq", i), "ATOKEN", MPDbAdapter.Table.EVENTS, true);
+        }
+        adapter.addJSON(new JSONObject().put("seq", 0), "ANOTHERTOKEN", MPDbAdapter.Table.EVENTS, false);
+
+        assertEquals(8, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+        assertEquals(5, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", false));
+        assertEquals(1, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ANOTHERTOKEN", true));
+        assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.PEOPLE, "ATOKEN", true));
+
+        String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        assertEquals("5", eventsData[2]);
+        adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", false));
+        assertEquals(3, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+
+        adapter.cleanupAutomaticEvents("ATOKEN");
+        assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+
+        // A fresh adapter seeds its counters from what is already stored
+        MPDbAdapter reopened = new MPDbAdapter(getContext(), "QueueDepthTestDB");
+        assertEquals(1, reopened.getQueueDepth(MPDbAdapter.Table.EVENTS, "ANOTHERTOKEN", true));
+
+        reopened.cleanupAllEvents(MPDbAdapter.Table.EVENTS, "ANOTHERTOKEN");
+        assertEquals(0, reopened.getQueueDepth(MPDbAdapter.Table.EVENTS, "ANOTHERTOKEN", true));
+
+        adapter.deleteDB();
+    }
+
+    public void testBatchSizeLimits() throws JSONException {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxBatchSize", 4);
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxBatchBytes", 100);
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchSizeTestDB", new MPConfig(metaData, getContext()));
+        adapter.deleteDB();
+
+        for (int i = 0; i < 6; i++) {
+            adapter.addJSON(new JSONObject().put("seq", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+
+        // Small records are capped by the row limit
+        String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        assertEquals(4, new JSONArray(eventsData[1]).length());
+        adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 90; i++) {
+            padding.append('x');
+        }
+        adapter.addJSON(new JSONObject().put("padding", padding.toString()), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+
+        // Larger records are capped by the byte budget
+        eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        JSONArray batch = new JSONArray(eventsData[1]);
+        assertEquals(2, batch.length());
+        assertEquals(4, batch.getJSONObject(0).getInt("seq"));
+        adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+
+        // A record over the budget is still sent on its own
+        eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        batch = new JSONArray(eventsData[1]);
+        assertEquals(1, batch.length());
+        assertEquals(padding.toString(), batch.getJSONObject(0).getString("padding"));
+        assertEquals(7 / 3.0f, adapter.getAverageBatchRows(), 0.01f);
+
+        adapter.deleteDB();
+    }
+
+    public void testBatchLedger() throws JSONException {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxBatchSize", 4);
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchLedgerTestDB", new MPConfig(metaData, getContext()));
+        adapter.deleteDB();
+
+        for (int i = 0; i < 10; i++) {
+            adapter.addJSON(new JSONObject().put("seq", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+
+        String[] first = adapter.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, null, 4);
+        String[] second = adapter.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, first[0], 4);
+        assertNotNull(first[3]);
+        assertNotNull(second[3]);
+        assertFalse(first[3].equals(second[3]));
+
+        // A retry gets the recorded batches back, even with a smaller batch size and new records
+        adapter.addJSON(new JSONObject().put("seq", 10), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        String[] retry = adapter.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, null, 1);
+        assertEquals(first[0], retry[0]);
+        assertEquals(first[1], retry[1]);
+        assertEquals(first[3], retry[3]);
+
+        // Once the first batch is confirmed, the second one is at the front of the queue
+        adapter.cleanupEvents(first[0], MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        retry = adapter.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, null, 4);
+        assertEquals(second[1], retry[1]);
+        assertEquals(second[3], retry[3]);
+
+        // Recorded batches survive a restart, unless their rows have changed
+        MPDbAdapter reopened = new MPDbAdapter(getContext(), "BatchLedgerTestDB", new MPConfig(metaData, getContext()));
+        assertEquals(1, reopened.reconcileBatches());
+        retry = reopened.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, null, 4);
+        assertEquals(second[3], retry[3]);
+
+        reopened.rewriteEventDataWithProperties(new HashMap<String, String>(), "ATOKEN");
+        retry = reopened.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", false, null, 4);
+        assertFalse(second[3].equals(retry[3]));
+        assertEquals(4, new JSONArray(retry[1]).length());
+
+        // A batch planned without automatic records isn't reused for a flush that includes them
+        reopened.addJSON(new JSONObject().put("seq", 11), "ATOKEN", MPDbAdapter.Table.EVENTS, true);
+        String[] automatic = reopened.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, null, 4);
+        assertFalse(retry[3].equals(automatic[3]));
+        assertEquals(4, new JSONArray(automatic[1]).getJSONObject(0).getInt("seq"));
+
+        // Confirmed batches are forgotten
+        reopened.cleanupEvents(automatic[0], MPDbAdapter.Table.EVENTS, "ATOKEN", true);
+        assertEquals(0, reopened.reconcileBatches());
+        String[] last = reopened.generateLedgerBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, null, 4);
+        JSONArray lastBatch = new JSONArray(last[1]);
+        assertEquals(4, lastBatch.length());
+        assertEquals(11, lastBatch.getJSONObject(3).getInt("seq"));
+
+        adapter.deleteDB();
+    }
+
+    public void testMalformedRecords() throws JSONException {
+        final JSONObject truncated = new JSONObject() {
+            @Override
+            public String toString() {
+                return "{\"event\":\"trunc";
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.ValidateRecords", true);
+        MPDbAdapter validating = new MPDbAdapter(getContext(), "MalformedTestDB", new MPConfig(metaData, getContext()));
+        validating.deleteDB();
+        validating.addJSON(new JSONObject().put("seq", 0), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        validating.addJSON(truncated, "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        assertEquals(1, validating.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+        validating.deleteDB();
+
+        // Without validation the record is stored, but kept out of the uploaded batch
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "MalformedTestDB", new MPConfig(new Bundle(), getContext()));
+        adapter.addJSON(new JSONObject().put("seq", 0), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        adapter.addJSON(truncated, "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        adapter.addJSON(new JSONObject().put("seq", 2), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        assertEquals(3, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+
+        String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        JSONArray batch = new JSONArray(eventsData[1]);
+        assertEquals(2, batch.length());
+        assertEquals(0, batch.getJSONObject(0).getInt("seq"));
+        assertEquals(2, batch.getJSONObject(1).getInt("seq"));
+
+        adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS, "ATOKEN", false);
+        assertEquals(0, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, "ATOKEN", true));
+        adapter.deleteDB();
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
@@ -281,6 +473,168 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testEventBuilder() throws InterruptedException, JSONException {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter eventBuilderAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final AnalyticsMessages eventBuilderMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            public MPDbAdapter makeDbAdapter(Context context) {
+                return eventBuilderAdapter;
+            }
+        };
+
+        MixpanelAPI mixpanel = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test event builder") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return eventBuilderMessages;
+            }
+        };
+
+        final JSONObject superProperties = new JSONObject();
+        superProperties.put("super", "super value");
+        superProperties.put("overridden", "super value");
+        mixpanel.registerSuperProperties(superProperties);
+
+        final JSONArray list = new JSONArray();
+        list.put("a");
+        final MixpanelAPI.EventBuilder builder = mixpanel.event("built event");
+        builder.put("int", 12)
+                .put("double", 4012.5)
+                .put("boolean", true)
+                .put("string", "value")
+                .put("list", list)
+                .put("overridden", "event value");
+        for (int i = 0; i < 20; i++) {
+            builder.put("extra " + i, i);
+        }
+        builder.put("int", 13).track();
+
+        final JSONObject message = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("built event", message.getString("event"));
+        final JSONObject properties = message.getJSONObject("properties");
+        assertEquals(13, properties.getInt("int"));
+        assertEquals(4012.5, properties.getDouble("double"));
+        assertTrue(properties.getBoolean("boolean"));
+        assertEquals("value", properties.getString("string"));
+        assertEquals("a", properties.getJSONArray("list").getString(0));
+        assertEquals(19, properties.getInt("extra 19"));
+        assertEquals("super value", properties.getString("super"));
+        assertEquals("event value", properties.getString("overridden"));
+        assertEquals(mixpanel.getDistinctId(), properties.getString("distinct_id"));
+        assertTrue(properties.has("time"));
+
+        // Builders are recycled, and don't carry properties over
+        final MixpanelAPI.EventBuilder reused = mixpanel.event("second built event");
+        assertSame(builder, reused);
+        reused.track();
+        final JSONObject second = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("properties");
+        assertFalse(second.has("int"));
+        assertFalse(second.has("list"));
+        assertEquals("super value", second.getString("overridden"));
+
+        // Bad values are reported like they are for track()
+        mixpanel.event("bad event").put("nan", Double.NaN).track();
+        mixpanel.event("good event").track();
+        assertEquals("good event", messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getString("event"));
+    }
+
+    public void testDeferredInitialization() throws InterruptedException, JSONException {
+        final String token = "Test deferred initialization";
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter deferredAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String messageToken, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic && token.equals(messageToken)) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final AnalyticsMessages deferredMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            public MPDbAdapter makeDbAdapter(Context context) {
+                return deferredAdapter;
+            }
+        };
+
+        // Initialization can't finish until the test lets the time events preferences load
+        final String timeEventsPrefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI.TimeEvents_" + token;
+        final FutureTask<SharedPreferences> timeEventsPrefs = new FutureTask<SharedPreferences>(new Callable<SharedPreferences>() {
+            @Override
+            public SharedPreferences call() {
+                final SharedPreferences prefs = getContext().getSharedPreferences(timeEventsPrefsName, Context.MODE_PRIVATE);
+                prefs.edit().clear().commit();
+                return prefs;
+            }
+        });
+
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DeferInitialization", true);
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        final MPConfig config = new MPConfig(metaData, getContext());
+
+        final MixpanelAPI mixpanel = new MixpanelAPI(getContext(), mMockPreferences, token, config, false, null) {
+            @Override
+            /* package */ PersistentIdentity getPersistentIdentity(Context context, Future<SharedPreferences> referrerPreferences, String token) {
+                final SharedPreferences stored = context.getSharedPreferences("com.mixpanel.android.mpmetrics.MixpanelAPI_" + token, Context.MODE_PRIVATE);
+                stored.edit().clear().commit();
+                final SharedPreferences mixpanelPrefs = context.getSharedPreferences("com.mixpanel.android.mpmetrics.Mixpanel", Context.MODE_PRIVATE);
+                mixpanelPrefs.edit().clear().putBoolean(token, true).commit();
+
+                final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+                return new PersistentIdentity(referrerPreferences,
+                        loader.loadPreferences(context, "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token, null),
+                        timeEventsPrefs,
+                        loader.loadPreferences(context, "com.mixpanel.android.mpmetrics.Mixpanel", null));
+            }
+
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return deferredMessages;
+            }
+
+            @Override
+            /* package */ boolean sendAppOpen() {
+                return false;
+            }
+        };
+
+        mixpanel.track("first event");
+        mixpanel.timeEvent("timed event");
+        mixpanel.event("built event").put("number", 1).track();
+        mixpanel.track("timed event");
+        final long trackedBefore = System.currentTimeMillis() / 1000;
+
+        // Tracking didn't wait for initialization, and nothing was sent before it finished
+        assertNull(messages.poll(200, TimeUnit.MILLISECONDS));
+        Thread.sleep(1000);
+        timeEventsPrefs.run();
+
+        final JSONObject first = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("first event", first.getString("event"));
+        assertTrue(first.getJSONObject("properties").getLong("time") <= trackedBefore);
+        final JSONObject built = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("built event", built.getString("event"));
+        assertEquals(1, built.getJSONObject("properties").getInt("number"));
+        final JSONObject timed = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("timed event", timed.getString("event"));
+        assertTrue(timed.getJSONObject("properties").getDouble("$duration") < 1.0);
+
+        // Calls that return state wait for initialization
+        assertEquals(mixpanel.getDistinctId(), first.getJSONObject("properties").getString("distinct_id"));
+        assertNotNull(mixpanel.getDeviceInfo());
+    }
+
     public void testPeopleOperations() throws JSONException {
         final List<AnalyticsMessages.PeopleDescription> messages = new ArrayList<AnalyticsMessages.PeopleDescription>();
 
@@ -599,7 +953,9 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         final RemoteService mockPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+            public byte[] performRequest(Request request) {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
                 final boolean isIdentified = isIdentifiedRef.get();
                 if (null == params) {
                     if (isIdentified) {
@@ -1298,6 +1654,99 @@ public class MixpanelBasicTest extends AndroidTestCase {
         assertTrue(found.getJSONObject("properties").has("$bluetooth_version"));
     }
 
+    public void testEnrichmentThreads() throws InterruptedException, JSONException {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter dbMock = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic && table == Table.EVENTS) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.EnrichmentThreads", 4);
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        assertEquals(4, config.getEnrichmentThreads());
+
+        final AnalyticsMessages analyticsMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbMock;
+            }
+        };
+
+        final int eventCount = 100;
+        for (int i = 0; i < eventCount; i++) {
+            final JSONObject properties = new JSONObject();
+            properties.put("index", i);
+            final AnalyticsMessages.EventDescription description = new AnalyticsMessages.EventDescription("enriched", properties, "TEST TOKEN");
+            analyticsMessages.eventsMessage(description);
+            assertNotNull(description.getPreparedEvent());
+        }
+
+        // Events are prepared concurrently, but stored in the order they were tracked
+        for (int i = 0; i < eventCount; i++) {
+            final JSONObject found = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(found);
+            assertEquals("enriched", found.getString("event"));
+            final JSONObject properties = found.getJSONObject("properties");
+            assertEquals(i, properties.getInt("index"));
+            assertEquals("TEST TOKEN", properties.getString("token"));
+            assertTrue(properties.has("$bluetooth_version"));
+        }
+    }
+
+    public void testDefaultPropertiesSnapshot() throws InterruptedException, JSONException {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter dbMock = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic && table == Table.EVENTS) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle(), getContext());
+        assertEquals(60 * 1000, config.getDefaultPropertiesCacheDuration());
+
+        final AnalyticsMessages analyticsMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbMock;
+            }
+        };
+
+        final JSONObject overrides = new JSONObject();
+        overrides.put("$os", "Overridden");
+        analyticsMessages.eventsMessage(new AnalyticsMessages.EventDescription("first", overrides, "TEST TOKEN"));
+        analyticsMessages.eventsMessage(new AnalyticsMessages.EventDescription("second", new JSONObject(), "TEST TOKEN"));
+
+        final JSONObject first = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("properties");
+        final JSONObject second = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("properties");
+        assertEquals("Overridden", first.getString("$os"));
+        // Event properties must not leak into the shared snapshot
+        assertEquals("Android", second.getString("$os"));
+        assertEquals(first.getString("$bluetooth_version"), second.getString("$bluetooth_version"));
+        assertEquals(first.optString("$carrier"), second.optString("$carrier"));
+        assertEquals(first.has("$wifi"), second.has("$wifi"));
+    }
+
     public void testConfiguration() {
         final ApplicationInfo appInfo = new ApplicationInfo();
         appInfo.metaData = new Bundle();
@@ -1347,7 +1796,9 @@ public class MixpanelBasicTest extends AndroidTestCase {
     public void testAlias() {
         final RemoteService mockPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+            public byte[] performRequest(Request request) {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
                 try {
                     assertTrue(params.containsKey("data"));
                     final String jsonData = Base64Coder.decodeString(params.get("data").toString());
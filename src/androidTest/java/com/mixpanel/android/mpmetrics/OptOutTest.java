@@ -21,8 +21,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLSocketFactory;
-
 public class OptOutTest extends AndroidTestCase {
 
     private MixpanelAPI mMixpanelAPI;
@@ -46,7 +44,9 @@ public class OptOutTest extends AndroidTestCase {
 
         final RemoteService mockPoster = new HttpService() {
             @Override
-            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+            public byte[] performRequest(Request request) {
+                final String endpointUrl = request.getEndpointUrl();
+                final Map<String, Object> params = request.getParams();
                 if (params != null) {
                     final String jsonData = Base64Coder.decodeString(params.get("data").toString());
                     assertTrue(params.containsKey("data"));
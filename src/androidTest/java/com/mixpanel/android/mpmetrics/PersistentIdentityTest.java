@@ -2,11 +2,22 @@ package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 
+import com.mixpanel.android.util.PersistenceStatsListener;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public class PersistentIdentityTest extends AndroidTestCase {
@@ -127,6 +138,153 @@ public class PersistentIdentityTest extends AndroidTestCase {
         assertTrue("hadPersistedDistinctId cannot be false", mPersistentIdentity.getHadPersistedDistinctId());
     }
 
+    public void testSuperPropertiesSnapshot() throws JSONException, InterruptedException {
+        final JSONObject registered = new JSONObject();
+        registered.put("registered", "value");
+        mPersistentIdentity.registerSuperProperties(registered);
+        // Changing the caller's object doesn't change the registered properties
+        registered.put("registered", "changed");
+
+        final JSONObject first = new JSONObject();
+        mPersistentIdentity.addSuperPropertiesToObject(first);
+        assertEquals("superprops", first.getString("thing"));
+        assertEquals("value", first.getString("registered"));
+
+        // Readers never see a partially applied update
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    final JSONObject ob = new JSONObject();
+                    mPersistentIdentity.addSuperPropertiesToObject(ob);
+                    if (ob.optInt("a", -1) != ob.optInt("b", -1)) {
+                        failed.set(true);
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 500; i++) {
+            final JSONObject pair = new JSONObject();
+            pair.put("a", i);
+            pair.put("b", i);
+            mPersistentIdentity.registerSuperProperties(pair);
+        }
+        done.set(true);
+        reader.join();
+        assertFalse(failed.get());
+
+        PersistentIdentity.awaitBackgroundWrites();
+        final SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        final JSONObject stored = new JSONObject(testPreferences.getString("super_properties", "{}"));
+        assertEquals(499, stored.getInt("a"));
+        assertEquals("value", stored.getString("registered"));
+
+        mPersistentIdentity.clearSuperProperties();
+        PersistentIdentity.awaitBackgroundWrites();
+        assertEquals("{}", testPreferences.getString("super_properties", null));
+    }
+
+    public void testStoreTimeEvents() {
+        final Map<String, Long> timings = new ConcurrentHashMap<String, Long>();
+        for (long i = 0; i < 100; i++) {
+            timings.put("event " + i, i);
+            mPersistentIdentity.storeTimeEvents(timings);
+        }
+        for (long i = 0; i < 100; i += 2) {
+            timings.remove("event " + i);
+            mPersistentIdentity.storeTimeEvents(timings);
+        }
+
+        // Reads wait for pending writes, which store the final state of the map
+        final Map<String, Long> stored = mPersistentIdentity.getTimeEvents();
+        assertEquals(50, stored.size());
+        assertEquals(Long.valueOf(99), stored.get("event 99"));
+        assertFalse(stored.containsKey("event 98"));
+
+        timings.clear();
+        mPersistentIdentity.storeTimeEvents(timings);
+        assertTrue(mPersistentIdentity.getTimeEvents().isEmpty());
+    }
+
+    public void testCoalescedWrites() {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.PersistenceWriteWindow", 60 * 1000);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        config.setPersistenceStatsListener(new PersistenceStatsListener() {
+            @Override
+            public void onPreferencesWritten(String preferencesName, int changes) {
+                writes.add(preferencesName + " " + changes);
+            }
+        });
+
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final PersistentIdentity identity = new PersistentIdentity(
+                loader.loadPreferences(getContext(), TEST_REFERRER_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_TIME_EVENTS_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_MIXPANEL_PREFERENCES, null),
+                config);
+
+        for (int i = 0; i < 20; i++) {
+            identity.setEventsDistinctId("EVENTS ID " + i);
+        }
+        assertEquals("EVENTS ID 19", identity.getEventsDistinctId());
+
+        // Nothing is written until the window closes, or a read needs the stored values
+        final SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        assertEquals("EVENTS DISTINCT ID", testPreferences.getString("events_distinct_id", null));
+        assertTrue(writes.isEmpty());
+
+        PersistentIdentity.awaitBackgroundWrites();
+        assertEquals("EVENTS ID 19", testPreferences.getString("events_distinct_id", null));
+        assertEquals(Collections.singletonList("identity 20"), writes);
+
+        writes.clear();
+        identity.setOptOutTracking(true, "TOKEN");
+        identity.setHasLaunched("TOKEN");
+        identity.flushWrites();
+        PersistentIdentity.awaitBackgroundWrites();
+        assertEquals(Collections.singletonList("mixpanel 2"), writes);
+        final SharedPreferences mixpanelPreferences = getContext().getSharedPreferences(TEST_MIXPANEL_PREFERENCES, Context.MODE_PRIVATE);
+        assertTrue(mixpanelPreferences.getBoolean("opt_out_TOKEN", false));
+        assertTrue(mixpanelPreferences.getBoolean("has_launched_TOKEN", false));
+        mixpanelPreferences.edit().clear().commit();
+    }
+
+    public void testEditDuringWrite() throws InterruptedException {
+        final Future<SharedPreferences> preferences = new SharedPreferencesLoader().loadPreferences(getContext(), TEST_PREFERENCES, null);
+        final WriteBehindPreferences writes = new WriteBehindPreferences("identity", preferences, 60 * 1000, null);
+        final SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+
+        // Stands in for the background writer, writing whenever a window would have closed
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    writes.write(true);
+                }
+            }
+        });
+        writer.start();
+        try {
+            // Every read follows writeAll(), so it must see the edit before it, whichever
+            // thread ends up writing it
+            for (int i = 0; i < 2000; i++) {
+                writes.putString("events_distinct_id", "EVENTS ID " + i);
+                WriteBehindPreferences.writeAll();
+                assertEquals("EVENTS ID " + i, testPreferences.getString("events_distinct_id", null));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
     private PersistentIdentity mPersistentIdentity;
     private static final String TEST_PREFERENCES = "TEST PERSISTENT PROPERTIES PREFS";
     private static final String TEST_REFERRER_PREFERENCES  = "TEST REFERRER PREFS";
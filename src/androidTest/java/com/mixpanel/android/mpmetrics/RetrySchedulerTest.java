@@ -0,0 +1,88 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.util.RemoteService;
+
+import java.util.Random;
+
+public class RetrySchedulerTest extends AndroidTestCase {
+    public void setUp() {
+        mScheduler = new RetryScheduler(BASE, MAX, new Random(1234));
+    }
+
+    public void testDelaysStayInBounds() {
+        long previous = BASE;
+        for (int i = 0; i < 1000; i++) {
+            final long delay = mScheduler.onFailure(TRACK, 0, -1);
+            assertTrue(delay >= BASE);
+            assertTrue(delay <= Math.min(MAX, previous * 3));
+            previous = delay;
+        }
+        assertEquals(1000, mScheduler.getFailures(TRACK));
+        assertEquals(previous, mScheduler.getLastDelay());
+    }
+
+    public void testDelaysAreSpreadOut() {
+        // Clients that fail together shouldn't all come back together
+        final long first = new RetryScheduler(BASE, MAX, new Random(1)).onFailure(TRACK, 0, -1);
+        boolean spread = false;
+        for (int seed = 2; seed < 10; seed++) {
+            spread |= first != new RetryScheduler(BASE, MAX, new Random(seed)).onFailure(TRACK, 0, -1);
+        }
+        assertTrue(spread);
+    }
+
+    public void testHalfOpenProbe() {
+        assertEquals(RetryScheduler.Permit.ALLOWED, mScheduler.acquire(TRACK, 0));
+        final long delay = mScheduler.onFailure(TRACK, 0, -1);
+
+        // Each endpoint backs off on its own
+        assertEquals(RetryScheduler.Permit.DENIED, mScheduler.acquire(TRACK, delay - 1));
+        assertEquals(RetryScheduler.Permit.ALLOWED, mScheduler.acquire(ENGAGE, delay - 1));
+
+        // One probe at a time once the delay has passed
+        assertEquals(RetryScheduler.Permit.PROBE, mScheduler.acquire(TRACK, delay));
+        assertEquals(RetryScheduler.Permit.DENIED, mScheduler.acquire(TRACK, delay));
+        mScheduler.release(TRACK);
+        assertEquals(RetryScheduler.Permit.PROBE, mScheduler.acquire(TRACK, delay));
+
+        // A failed probe opens the endpoint again
+        final long nextDelay = mScheduler.onFailure(TRACK, delay, -1);
+        assertEquals(RetryScheduler.Permit.DENIED, mScheduler.acquire(TRACK, delay + nextDelay - 1));
+        assertEquals(RetryScheduler.Permit.PROBE, mScheduler.acquire(TRACK, delay + nextDelay));
+
+        // A successful one closes it
+        mScheduler.onSuccess(TRACK);
+        assertEquals(RetryScheduler.Permit.ALLOWED, mScheduler.acquire(TRACK, delay + nextDelay));
+        assertEquals(0, mScheduler.getFailures(TRACK));
+    }
+
+    public void testRetryAfter() {
+        assertEquals(5 * MAX, mScheduler.onFailure(TRACK, 0, 5 * MAX));
+        assertTrue(mScheduler.onFailure(ENGAGE, 0, 1) >= BASE);
+
+        // Unreasonable requests are capped at an hour
+        assertEquals(60 * 60 * 1000, mScheduler.onFailure(TRACK, 0, Long.MAX_VALUE));
+    }
+
+    public void testParseRetryAfter() {
+        final long now = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+        assertEquals(120, RemoteService.ServiceUnavailableException.parseRetryAfter("120", now));
+        assertEquals(120, RemoteService.ServiceUnavailableException.parseRetryAfter(" 120 ", now));
+        assertEquals(30, RemoteService.ServiceUnavailableException.parseRetryAfter("Sun, 06 Nov 1994 08:50:07 GMT", now));
+        assertEquals(30, RemoteService.ServiceUnavailableException.parseRetryAfter("Sunday, 06-Nov-94 08:50:07 GMT", now));
+        assertEquals(30, RemoteService.ServiceUnavailableException.parseRetryAfter("Sun Nov  6 08:50:07 1994", now));
+
+        assertEquals(0, RemoteService.ServiceUnavailableException.parseRetryAfter("Sun, 06 Nov 1994 08:00:00 GMT", now));
+        assertEquals(0, RemoteService.ServiceUnavailableException.parseRetryAfter("-5", now));
+        assertEquals(0, RemoteService.ServiceUnavailableException.parseRetryAfter("soon", now));
+        assertEquals(0, RemoteService.ServiceUnavailableException.parseRetryAfter(null, now));
+    }
+
+    private RetryScheduler mScheduler;
+    private static final long BASE = 1000;
+    private static final long MAX = 10000;
+    private static final String TRACK = RetryScheduler.key("/track", "TOKEN");
+    private static final String ENGAGE = RetryScheduler.key("/engage", "TOKEN");
+}
@@ -5,12 +5,23 @@ import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestUtils {
     public static byte[] bytes(String s) {
@@ -123,4 +134,212 @@ public class TestUtils {
         }
     }
 
+    /**
+     * Minimal HTTP/1.1 server on the loopback interface. Answers every request with 200 and a
+     * body of "1\n", and keeps connections alive, counting both connections and requests.
+     * Requests to a path can be made to fail with failRequests, to simulate an outage, and their
+     * bodies and Idempotency-Key headers are kept.
+     */
+    public static class LoopbackServer {
+        public LoopbackServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread acceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptConnections();
+                }
+            });
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        public String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        public int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        public int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        // Requests to path, including failed ones
+        public int getRequestCount(String path) {
+            synchronized (mPathLock) {
+                final Integer count = mPathRequestCounts.get(path);
+                return null == count ? 0 : count;
+            }
+        }
+
+        // Bodies of the requests to path so far, in the order they arrived
+        public List<String> getRequestBodies(String path) {
+            synchronized (mPathLock) {
+                final List<String> bodies = mPathBodies.get(path);
+                return null == bodies ? new ArrayList<String>() : new ArrayList<String>(bodies);
+            }
+        }
+
+        // Idempotency-Key headers of the requests to path so far, null for requests without one
+        public List<String> getIdempotencyKeys(String path) {
+            synchronized (mPathLock) {
+                final List<String> keys = mPathIdempotencyKeys.get(path);
+                return null == keys ? new ArrayList<String>() : new ArrayList<String>(keys);
+            }
+        }
+
+        // Answers the next count requests to path with status, and a Retry-After header if retryAfter isn't null
+        public void failRequests(String path, int count, int status, String retryAfter) {
+            synchronized (mPathLock) {
+                mFailures.put(path, new Failure(count, status, retryAfter));
+            }
+        }
+
+        // Simulated server processing time for each request
+        public void setResponseDelay(int millis) {
+            mResponseDelayMillis = millis;
+        }
+
+        public void close() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private void acceptConnections() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return; // closed
+                }
+                mConnectionCount.incrementAndGet();
+                final Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // Client went away
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // Nothing to do
+                            }
+                        }
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        }
+
+        private void serve(Socket socket) throws IOException, InterruptedException {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (true) {
+                final String requestLine = readLine(in);
+                if (null == requestLine) {
+                    return;
+                }
+                int contentLength = 0;
+                String idempotencyKey = null;
+                String header;
+                while (null != (header = readLine(in)) && header.length() > 0) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+                    } else if (header.toLowerCase().startsWith("idempotency-key:")) {
+                        idempotencyKey = header.substring("idempotency-key:".length()).trim();
+                    }
+                }
+                final byte[] requestBody = new byte[contentLength];
+                for (int i = 0; i < contentLength; i++) {
+                    final int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    requestBody[i] = (byte) b;
+                }
+
+                final String[] requestParts = requestLine.split(" ");
+                final String path = requestParts.length > 1 ? requestParts[1] : "";
+                Failure failure;
+                synchronized (mPathLock) {
+                    final Integer count = mPathRequestCounts.get(path);
+                    mPathRequestCounts.put(path, null == count ? 1 : count + 1);
+                    if (!mPathBodies.containsKey(path)) {
+                        mPathBodies.put(path, new ArrayList<String>());
+                        mPathIdempotencyKeys.put(path, new ArrayList<String>());
+                    }
+                    mPathBodies.get(path).add(new String(requestBody, "UTF-8"));
+                    mPathIdempotencyKeys.get(path).add(idempotencyKey);
+                    failure = mFailures.get(path);
+                    if (null != failure && failure.remaining-- <= 0) {
+                        mFailures.remove(path);
+                        failure = null;
+                    }
+                }
+
+                mRequestCount.incrementAndGet();
+                if (mResponseDelayMillis > 0) {
+                    Thread.sleep(mResponseDelayMillis);
+                }
+                if (null != failure) {
+                    final byte[] body = bytes("Unavailable\n");
+                    final String retryAfterHeader = null == failure.retryAfter ? "" : "Retry-After: " + failure.retryAfter + "\r\n";
+                    out.write(bytes("HTTP/1.1 " + failure.status + " Unavailable\r\n" + retryAfterHeader +
+                            "Content-Length: " + body.length + "\r\n\r\n"));
+                    out.write(body);
+                } else {
+                    final byte[] body = bytes("1\n");
+                    out.write(bytes("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n"));
+                    out.write(body);
+                }
+                out.flush();
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    final int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+
+        private static class Failure {
+            Failure(int remaining, int status, String retryAfter) {
+                this.remaining = remaining;
+                this.status = status;
+                this.retryAfter = retryAfter;
+            }
+
+            int remaining;
+            final int status;
+            final String retryAfter;
+        }
+
+        private final ServerSocket mServerSocket;
+        private final Object mPathLock = new Object();
+        private final Map<String, Integer> mPathRequestCounts = new HashMap<String, Integer>(); // guarded by mPathLock
+        private final Map<String, Failure> mFailures = new HashMap<String, Failure>(); // guarded by mPathLock
+        private final Map<String, List<String>> mPathBodies = new HashMap<String, List<String>>(); // guarded by mPathLock
+        private final Map<String, List<String>> mPathIdempotencyKeys = new HashMap<String, List<String>>(); // guarded by mPathLock
+        private final AtomicInteger mConnectionCount = new AtomicInteger(0);
+        private final AtomicInteger mRequestCount = new AtomicInteger(0);
+        private volatile int mResponseDelayMillis = 0;
+    }
+
 }
@@ -1,6 +1,13 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -13,9 +20,13 @@ import android.util.DisplayMetrics;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.Base64FormParameter;
+import com.mixpanel.android.util.FlushStatsListener;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.RemoteTransport;
+import com.mixpanel.android.util.TextFormParameter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -24,11 +35,29 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-
-import javax.net.ssl.SSLSocketFactory;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manage communication of events with the internal database and the Mixpanel servers.
@@ -46,6 +75,7 @@ import javax.net.ssl.SSLSocketFactory;
         mConfig = getConfig(context);
         mWorker = createWorker();
         getPoster().checkIsMixpanelBlocked();
+        registerMemoryCallbacks();
     }
 
     protected Worker createWorker() {
@@ -74,6 +104,12 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     public void eventsMessage(final EventDescription eventDescription) {
+        mWorker.enrichEvent(eventDescription);
+        if (mWorker.hasEventQueue()) {
+            mWorker.offerEvent(eventDescription);
+            return;
+        }
+
         final Message m = Message.obtain();
         m.what = ENQUEUE_EVENTS;
         m.obj = eventDescription;
@@ -156,6 +192,37 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    // Must be thread safe.
+    public void closeDatabase() {
+        final Message m = Message.obtain();
+        m.what = CLOSE_DATABASE;
+
+        mWorker.runMessage(m);
+    }
+
+    // The database connection is long-lived by default, so give it back when the
+    // system is running low on memory or the app is a candidate for being killed.
+    private void registerMemoryCallbacks() {
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    closeDatabase();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                closeDatabase();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Nothing to do
+            }
+        });
+    }
+
     /////////////////////////////////////////////////////////
     // For testing, to allow for Mocking.
 
@@ -172,7 +239,15 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     protected RemoteService getPoster() {
-        return new HttpService();
+        return new HttpService(mConfig.getConnectTimeout(), mConfig.getReadTimeout());
+    }
+
+    protected ConnectivityMonitor makeConnectivityMonitor() {
+        return new ConnectivityMonitor(mContext);
+    }
+
+    protected RetryScheduler makeRetryScheduler() {
+        return new RetryScheduler(RETRY_BASE_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS, new Random());
     }
 
     ////////////////////////////////////////////////////
@@ -195,6 +270,15 @@ import javax.net.ssl.SSLSocketFactory;
             mSessionMetadata = sessionMetada;
         }
 
+        // Set when the event is prepared on an enrichment thread, see Worker.enrichEvent()
+        /* package */ void setPreparedEvent(Future<JSONObject> preparedEvent) {
+            mPreparedEvent = preparedEvent;
+        }
+
+        /* package */ Future<JSONObject> getPreparedEvent() {
+            return mPreparedEvent;
+        }
+
         public String getEventName() {
             return mEventName;
         }
@@ -213,6 +297,7 @@ import javax.net.ssl.SSLSocketFactory;
 
         private final String mEventName;
         private final JSONObject mSessionMetadata;
+        private Future<JSONObject> mPreparedEvent;
         private final boolean mIsAutomatic;
     }
 
@@ -344,7 +429,45 @@ import javax.net.ssl.SSLSocketFactory;
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
     class Worker {
         public Worker() {
+            final int eventQueueCapacity = mConfig.getEventQueueCapacity();
+            if (eventQueueCapacity > 0) {
+                mEventQueue = new EventQueue<EventDescription>(eventQueueCapacity, mConfig.getEventQueueOverflowPolicy(), mConfig.getEventQueueBlockTimeout());
+            } else {
+                mEventQueue = null;
+            }
+            mEventDrainScheduled = new AtomicBoolean(false);
+            mSystemInformation = SystemInformation.getInstance(mContext);
+            mDefaultPropertiesGeneration = new AtomicInteger(0);
+            if (mConfig.getDefaultPropertiesCacheDuration() > 0) {
+                registerDefaultPropertiesReceiver();
+            }
+
+            final int enrichmentThreads = mConfig.getEnrichmentThreads();
+            if (enrichmentThreads > 0) {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(enrichmentThreads, enrichmentThreads, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory("com.mixpanel.android.AnalyticsEnrichment"));
+                executor.allowCoreThreadTimeOut(true);
+                mEnrichmentExecutor = executor;
+            } else {
+                mEnrichmentExecutor = null;
+            }
             mHandler = restartWorkerThread();
+
+            if (mConfig.getNetworkAwareFlush()) {
+                mConnectivityMonitor = makeConnectivityMonitor();
+                mConnectivityMonitor.start(new ConnectivityMonitor.Listener() {
+                    @Override
+                    public void onConnectivityChanged(boolean connected, boolean unmetered) {
+                        final Message m = Message.obtain();
+                        m.what = CONNECTIVITY_CHANGED;
+                        m.arg1 = connected ? 1 : 0;
+                        m.arg2 = unmetered ? 1 : 0;
+                        runMessage(m);
+                    }
+                });
+            } else {
+                mConnectivityMonitor = null;
+            }
         }
 
         public boolean isDead() {
@@ -364,6 +487,54 @@ import javax.net.ssl.SSLSocketFactory;
             }
         }
 
+        // Starts building the stored form of the event on an enrichment thread, if
+        // MPConfig.EnrichmentThreads is set. The worker still stores events in the order
+        // they were tracked, waiting for the result if it isn't ready yet.
+        public void enrichEvent(final EventDescription eventDescription) {
+            if (null == mEnrichmentExecutor) {
+                return;
+            }
+
+            final FutureTask<JSONObject> preparedEvent = new FutureTask<JSONObject>(new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() throws JSONException {
+                    return prepareEventObject(eventDescription);
+                }
+            });
+            try {
+                mEnrichmentExecutor.execute(preparedEvent);
+            } catch (final RejectedExecutionException e) {
+                // The worker was killed, and the event will be dropped anyway
+                return;
+            }
+            eventDescription.setPreparedEvent(preparedEvent);
+        }
+
+        public boolean hasEventQueue() {
+            return null != mEventQueue;
+        }
+
+        // Hands an event to the worker thread without taking a lock, unless the queue is
+        // full and the overflow policy asks us to wait. Only one drain message is in the
+        // Handler queue at a time, however many threads are tracking events.
+        public void offerEvent(EventDescription eventDescription) {
+            if (mDead) {
+                logAboutMessageToMixpanel("Dead mixpanel worker dropping an event: " + eventDescription.getEventName());
+                return;
+            }
+
+            if (!mEventQueue.offer(eventDescription)) {
+                logAboutMessageToMixpanel("Event queue is full, dropping event " + eventDescription.getEventName() +
+                        " (" + mEventQueue.getDroppedCount() + " events dropped so far)");
+            }
+
+            if (mEventDrainScheduled.compareAndSet(false, true)) {
+                final Message m = Message.obtain();
+                m.what = DRAIN_EVENT_QUEUE;
+                runMessage(m);
+            }
+        }
+
         // NOTE that the returned worker will run FOREVER, unless you send a hard kill
         // (which you really shouldn't)
         protected Handler restartWorkerThread() {
@@ -376,9 +547,16 @@ import javax.net.ssl.SSLSocketFactory;
             public AnalyticsMessageHandler(Looper looper) {
                 super(looper);
                 mDbAdapter = null;
-                mSystemInformation = SystemInformation.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
+                mRetryScheduler = makeRetryScheduler();
                 mFlushInterval = mConfig.getFlushInterval();
+                if (mConfig.getAdaptiveFlush()) {
+                    mFlushController = new FlushController(mConfig.getAdaptiveFlushMinInterval(), mConfig.getAdaptiveFlushMaxInterval(), mConfig.getMaxBatchSize());
+                } else {
+                    mFlushController = null;
+                }
+                mInsertCoalescingWindow = mConfig.getInsertCoalescingWindow();
+                mPendingInserts = new ArrayList<PendingInsert>();
             }
 
             protected DecideChecker createDecideChecker() {
@@ -391,12 +569,29 @@ import javax.net.ssl.SSLSocketFactory;
                     mDbAdapter = makeDbAdapter(mContext);
                     mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
                     mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    if (mConfig.getIdempotentUploads()) {
+                        // Batches whose uploads were cut off last time go out again as they were
+                        final int pendingBatches = mDbAdapter.reconcileBatches();
+                        if (pendingBatches > 0) {
+                            logAboutMessageToMixpanel(pendingBatches + " batches from a previous run are waiting to be confirmed");
+                        }
+                    }
                 }
 
                 try {
                     int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
                     String token = null;
 
+                    // Every event offered to the event queue before this message was sent is
+                    // stored before the message is handled. Events offered after it may be
+                    // stored first too, so a flush or clear can include events tracked after
+                    // it was requested. Coalesced records must reach the database before
+                    // anything that reads, flushes or clears the queues.
+                    drainEventQueue();
+                    if (msg.what != ENQUEUE_EVENTS && msg.what != ENQUEUE_PEOPLE && msg.what != ENQUEUE_GROUP && msg.what != DRAIN_EVENT_QUEUE) {
+                        drainPendingInserts();
+                    }
+
                     if (msg.what == ENQUEUE_PEOPLE) {
                         final PeopleDescription message = (PeopleDescription) msg.obj;
                         final MPDbAdapter.Table peopleTable = message.isAnonymous() ? MPDbAdapter.Table.ANONYMOUS_PEOPLE : MPDbAdapter.Table.PEOPLE;
@@ -404,7 +599,7 @@ import javax.net.ssl.SSLSocketFactory;
                         logAboutMessageToMixpanel("Queuing people record for sending later");
                         logAboutMessageToMixpanel("    " + message.toString());
                         token = message.getToken();
-                        int numRowsTable = mDbAdapter.addJSON(message.getMessage(), token, peopleTable, false);
+                        int numRowsTable = insertRecord(message.getMessage(), token, peopleTable, false);
                         returnCode = message.isAnonymous() ? 0 : numRowsTable;
                     } else if (msg.what == ENQUEUE_GROUP) {
                         final GroupDescription message = (GroupDescription) msg.obj;
@@ -412,23 +607,13 @@ import javax.net.ssl.SSLSocketFactory;
                         logAboutMessageToMixpanel("Queuing group record for sending later");
                         logAboutMessageToMixpanel("    " + message.toString());
                         token = message.getToken();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.GROUPS, false);
+                        returnCode = insertRecord(message.getMessage(), token, MPDbAdapter.Table.GROUPS, false);
                     } else if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
-                            token = eventDescription.getToken();
-
-                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
-                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
-                                return;
-                            }
-                            returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
-                        } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
-                        }
+                        token = eventDescription.getToken();
+                        returnCode = storeEvent(eventDescription);
+                    } else if (msg.what == DRAIN_EVENT_QUEUE) {
+                        logAboutMessageToMixpanel("Moved tracked events from the event queue to the database");
                     } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
                         final PushAnonymousPeopleDescription pushAnonymousPeopleDescription = (PushAnonymousPeopleDescription) msg.obj;
                         final String distinctId = pushAnonymousPeopleDescription.getDistinctId();
@@ -442,28 +627,36 @@ import javax.net.ssl.SSLSocketFactory;
                         final UpdateEventsPropertiesDescription description = (UpdateEventsPropertiesDescription) msg.obj;
                         int updatedEvents = mDbAdapter.rewriteEventDataWithProperties(description.getProperties(), description.getToken());
                         MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
+                    } else if (msg.what == CLOSE_DATABASE) {
+                        logAboutMessageToMixpanel("Closing the database connection to release memory");
+                        mDbAdapter.closeDatabase();
+                    } else if (msg.what == DRAIN_PENDING_INSERTS) {
+                        logAboutMessageToMixpanel("Coalescing window elapsed, queued records were written to the database");
                     } else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
                         updateFlushFrequency();
                         token = (String) msg.obj;
                         boolean shouldCheckDecide = msg.arg1 == 1;
                         sendAllData(mDbAdapter, token);
-                        if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
+                        if (shouldCheckDecide) {
+                            scheduleDecideCheck(token);
                         }
                     } else if (msg.what == INSTALL_DECIDE_CHECK) {
                         logAboutMessageToMixpanel("Installing a check for decide");
                         final DecideMessages check = (DecideMessages) msg.obj;
                         mDecideChecker.addDecideCheck(check);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(check.getToken(), getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        scheduleDecideCheck(check.getToken());
+                    } else if (msg.what == CONNECTIVITY_CHANGED) {
+                        final boolean connected = msg.arg1 == 1;
+                        if (connected && !mWaitingTokens.isEmpty()) {
+                            logAboutMessageToMixpanel("Network is " + (msg.arg2 == 1 ? "unmetered" : "metered") +
+                                    ", flushing messages that were waiting for it");
+                            mReconnectedAt = SystemClock.elapsedRealtime();
+                            mReconnectDeliveries.clear();
+                            final List<String> waitingTokens = new ArrayList<String>(mWaitingTokens);
+                            mWaitingTokens.clear();
+                            for (final String waitingToken : waitingTokens) {
+                                sendAllData(mDbAdapter, waitingToken);
                             }
                         }
                     } else if (msg.what == EMPTY_QUEUES) {
@@ -476,6 +669,11 @@ import javax.net.ssl.SSLSocketFactory;
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
+                            // Flush threads check mDead under the adapter's lock before each
+                            // database access, so once it is set none of them can recreate the
+                            // database after it is deleted.
+                            mDead = true;
+                            stopBackgroundWork();
                             mDbAdapter.deleteDB();
                             mHandler = null;
                             Looper.myLooper().quit();
@@ -485,37 +683,12 @@ import javax.net.ssl.SSLSocketFactory;
                     }
 
                     ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
-                        logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = token;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
-                    }
+                    checkQueueDepth(returnCode, token);
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
                         mHandler = null;
+                        mDead = true;
                         try {
                             Looper.myLooper().quit();
                             MPLog.e(LOGTAG, "Mixpanel will not process any more analytics messages", e);
@@ -526,227 +699,887 @@ import javax.net.ssl.SSLSocketFactory;
                 }
             }// handleMessage
 
+            // Returns the queue depth after storing the event, or DB_UNDEFINED_CODE if the
+            // event was not stored, or is still pending a coalesced insert.
+            private int storeEvent(EventDescription eventDescription) {
+                try {
+                    final JSONObject message = getPreparedEvent(eventDescription);
+                    logAboutMessageToMixpanel("Queuing event for sending later");
+                    logAboutMessageToMixpanel("    " + message.toString());
+                    final String token = eventDescription.getToken();
+
+                    DecideMessages decide = mDecideChecker.getDecideMessages(token);
+                    if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                        return MPDbAdapter.DB_UNDEFINED_CODE;
+                    }
+                    return insertRecord(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                    return MPDbAdapter.DB_UNDEFINED_CODE;
+                }
+            }
+
+            private JSONObject getPreparedEvent(EventDescription eventDescription) throws JSONException {
+                final Future<JSONObject> preparedEvent = eventDescription.getPreparedEvent();
+                if (null != preparedEvent) {
+                    try {
+                        return preparedEvent.get();
+                    } catch (final ExecutionException e) {
+                        if (e.getCause() instanceof JSONException) {
+                            throw (JSONException) e.getCause();
+                        }
+                        MPLog.w(LOGTAG, "Could not prepare event " + eventDescription.getEventName() + " on an enrichment thread", e.getCause());
+                    } catch (final InterruptedException e) {
+                        MPLog.w(LOGTAG, "Interrupted waiting for event " + eventDescription.getEventName() + " to be prepared", e);
+                    }
+                }
+                // Not enriched, or enrichment failed, so prepare it here as we always have
+                return prepareEventObject(eventDescription);
+            }
+
+            // Stores events waiting in the event queue, at most one queue's worth per call
+            // so a steady stream of producers can't starve the rest of the Handler queue.
+            private void drainEventQueue() {
+                if (null == mEventQueue) {
+                    return;
+                }
+
+                // Cleared before polling, so an event offered while we drain either
+                // gets polled below or schedules another drain.
+                mEventDrainScheduled.set(false);
+                final int limit = mEventQueue.capacity();
+                for (int i = 0; i < limit; i++) {
+                    final EventDescription eventDescription = mEventQueue.poll();
+                    if (null == eventDescription) {
+                        return;
+                    }
+                    checkQueueDepth(storeEvent(eventDescription), eventDescription.getToken());
+                }
+
+                if (mEventDrainScheduled.compareAndSet(false, true)) {
+                    sendEmptyMessage(DRAIN_EVENT_QUEUE);
+                }
+            }
+
+            private void checkQueueDepth(int returnCode, String token) {
+                updateFlushSchedule();
+                final int bulkUploadLimit = null == mFlushController ? mConfig.getBulkUploadLimit() : mFlushController.getBulkUploadLimit();
+                final long flushInterval = null == mFlushController ? mFlushInterval : mFlushController.getFlushInterval();
+
+                if ((returnCode >= bulkUploadLimit || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && token != null) {
+                    logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token);
+                    scheduleDecideCheck(token);
+                } else if (returnCode > 0 && null != mConnectivityMonitor && !mConnectivityMonitor.isConnected()) {
+                    // No point waking up to find we're still offline, this token is flushed on reconnect
+                    logAboutMessageToMixpanel("Queue depth " + returnCode + " - Offline, waiting for a network to flush");
+                    mWaitingTokens.add(token);
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + flushInterval);
+                    if (flushInterval >= 0) {
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = token;
+                        flushMessage.arg1 = 1;
+                        sendMessageDelayed(flushMessage, flushInterval);
+                    }
+                }
+            }
+
+            // Lets MPConfig.AdaptiveFlush react to recent traffic, and reports any change it makes
+            private void updateFlushSchedule() {
+                if (null == mFlushController) {
+                    return;
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (!mFlushController.update(now)) {
+                    return;
+                }
+
+                final long flushInterval = mFlushController.getFlushInterval();
+                final int batchSize = mFlushController.getMinBatchSize();
+                final double enqueuedPerMinute = mFlushController.getEnqueueRatePerMinute(now);
+                logAboutMessageToMixpanel("Adaptive flush: flushing every " + flushInterval + " ms, " + batchSize +
+                        " messages per batch, at " + enqueuedPerMinute + " messages per minute");
+                final FlushStatsListener statsListener = mConfig.getFlushStatsListener();
+                if (null != statsListener) {
+                    statsListener.onFlushScheduleChanged(flushInterval, batchSize, enqueuedPerMinute,
+                            mFlushController.getBatchLatency(), mFlushController.getSuccessRate());
+                }
+            }
+
+            // Writes the record right away, or holds it for the next coalesced transaction
+            // if MPConfig.InsertCoalescingWindow is set. Returns the queue depth reported by
+            // the database, or DB_UNDEFINED_CODE if the record is still pending.
+            private int insertRecord(JSONObject record, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (null != mFlushController && table != MPDbAdapter.Table.ANONYMOUS_PEOPLE) {
+                    mFlushController.onEnqueued(SystemClock.elapsedRealtime());
+                }
+                if (mInsertCoalescingWindow <= 0) {
+                    return mDbAdapter.addJSON(record, token, table, isAutomatic);
+                }
+
+                mPendingInserts.add(new PendingInsert(record, token, table, isAutomatic));
+                if (mPendingInserts.size() >= mConfig.getBulkUploadLimit()) {
+                    drainPendingInserts();
+                } else if (!hasMessages(DRAIN_PENDING_INSERTS)) {
+                    sendEmptyMessageDelayed(DRAIN_PENDING_INSERTS, mInsertCoalescingWindow);
+                }
+                return MPDbAdapter.DB_UNDEFINED_CODE;
+            }
+
+            // Writes every pending record, one transaction per run of records that share
+            // a table, token and automatic flag, then reacts to the resulting queue depths.
+            private void drainPendingInserts() {
+                if (mPendingInserts.isEmpty()) {
+                    return;
+                }
+                removeMessages(DRAIN_PENDING_INSERTS);
+
+                final Map<String, Integer> queueDepths = new HashMap<String, Integer>();
+                final int pendingCount = mPendingInserts.size();
+                int runStart = 0;
+                while (runStart < pendingCount) {
+                    final PendingInsert first = mPendingInserts.get(runStart);
+                    final List<JSONObject> run = new ArrayList<JSONObject>();
+                    int runEnd = runStart;
+                    while (runEnd < pendingCount && first.hasSameDestination(mPendingInserts.get(runEnd))) {
+                        run.add(mPendingInserts.get(runEnd).record);
+                        runEnd++;
+                    }
+
+                    final int depth = mDbAdapter.addJSONBatch(run, first.token, first.table, first.isAutomatic);
+                    logAboutMessageToMixpanel("Wrote " + run.size() + " coalesced records to " + first.table.getName());
+                    if (first.table != MPDbAdapter.Table.ANONYMOUS_PEOPLE) {
+                        final Integer previous = queueDepths.get(first.token);
+                        if (null == previous || (previous != MPDbAdapter.DB_OUT_OF_MEMORY_ERROR &&
+                                (depth == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR || depth > previous))) {
+                            queueDepths.put(first.token, depth);
+                        }
+                    }
+                    runStart = runEnd;
+                }
+                mPendingInserts.clear();
+
+                for (final Map.Entry<String, Integer> entry : queueDepths.entrySet()) {
+                    checkQueueDepth(entry.getValue(), entry.getKey());
+                }
+            }
+
             protected long getTrackEngageRetryAfter() {
-                return mTrackEngageRetryAfter;
+                return mRetryScheduler.getLastDelay();
             }
 
             private void sendAllData(MPDbAdapter dbAdapter, String token) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
+                    if (null != mConnectivityMonitor) {
+                        mWaitingTokens.add(token);
+                    }
                     return;
                 }
 
-                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint());
-            }
-
-            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url) {
-                final RemoteService poster = getPoster();
                 DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
                 boolean includeAutomaticEvents = true;
                 if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
                     includeAutomaticEvents = false;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
+
+                sendTable(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint(), includeAutomaticEvents);
+                sendTable(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint(), includeAutomaticEvents);
+                sendTable(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint(), includeAutomaticEvents);
+            }
+
+            private void sendTable(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url, boolean includeAutomaticEvents) {
+                if (shouldWaitForUnmetered(dbAdapter, token, table, includeAutomaticEvents)) {
+                    return;
+                }
+                if (mConfig.getFlushOnUploadThreads()) {
+                    scheduleSendData(dbAdapter, token, table, url, includeAutomaticEvents);
+                } else {
+                    sendData(dbAdapter, token, table, url, includeAutomaticEvents);
+                }
+            }
+
+            // A queue longer than MPConfig.UnmeteredBacklogThreshold waits for an unmetered
+            // network, but for no longer than MPConfig.UnmeteredBacklogMaxDelay.
+            private boolean shouldWaitForUnmetered(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, boolean includeAutomaticEvents) {
+                final String key = table.getName() + " " + token;
+                final int threshold = mConfig.getUnmeteredBacklogThreshold();
+                if (null == mConnectivityMonitor || threshold <= 0 || mConnectivityMonitor.isUnmetered() ||
+                        dbAdapter.getQueueDepth(table, token, includeAutomaticEvents) <= threshold) {
+                    mUnmeteredWaits.remove(key);
+                    return false;
                 }
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                final long now = SystemClock.elapsedRealtime();
+                final Long waitingSince = mUnmeteredWaits.get(key);
+                if (null == waitingSince) {
+                    mUnmeteredWaits.put(key, now);
+                    // Flush anyway once the wait is over, if nothing else does first
+                    final Message flushMessage = Message.obtain();
+                    flushMessage.what = FLUSH_QUEUE;
+                    flushMessage.obj = token;
+                    sendMessageDelayed(flushMessage, mConfig.getUnmeteredBacklogMaxDelay());
+                } else if (now - waitingSince >= mConfig.getUnmeteredBacklogMaxDelay()) {
+                    logAboutMessageToMixpanel("The " + table.getName() + " queue has waited long enough for an unmetered network, sending it over a metered one.");
+                    return false;
+                }
+
+                logAboutMessageToMixpanel("Not sending the " + table.getName() + " queue over a metered network, it is longer than " + threshold + " messages.");
+                mWaitingTokens.add(token);
+                return true;
+            }
+
+            // Runs a decide check on the flush executor, since it waits on the network. At most
+            // one check per token is waiting or running at a time.
+            private void scheduleDecideCheck(final String token) {
+                if (SystemClock.elapsedRealtime() < mDecideRetryAfter || null == mDecideChecker.getDecideMessages(token)) {
+                    return;
+                }
+                synchronized (mActiveDecideChecks) {
+                    if (!mActiveDecideChecks.add(token)) {
+                        return;
+                    }
+                }
 
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
+                final RemoteService poster = getPoster();
+                getFlushExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mDecideChecker.runDecideCheck(token, poster);
+                        } catch (final RemoteService.ServiceUnavailableException e) {
+                            mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        } catch (final RuntimeException e) {
+                            MPLog.e(LOGTAG, "Decide check threw an unhandled exception", e);
+                        } finally {
+                            synchronized (mActiveDecideChecks) {
+                                mActiveDecideChecks.remove(token);
+                            }
+                        }
+                    }
+                });
+            }
+
+            // Stops the threads and callbacks that could store or send records. Flushes that
+            // are already running finish their current upload, then find mDead set.
+            private void stopBackgroundWork() {
+                synchronized (this) {
+                    if (null != mFlushExecutor) {
+                        mFlushExecutor.shutdown();
+                    }
+                }
+                if (null != mEnrichmentExecutor) {
+                    mEnrichmentExecutor.shutdown();
+                }
+                if (null != mConnectivityMonitor) {
+                    mConnectivityMonitor.stop();
+                }
+                unregisterDefaultPropertiesReceiver();
+            }
+
+            // Runs sendData on the flush executor, so the worker can keep storing records while
+            // uploads are in progress. At most one flush per table and token runs at a time, which
+            // keeps each queue sent and deleted in order. A flush requested while one is running
+            // is run again as soon as the running one finishes.
+            private void scheduleSendData(final MPDbAdapter dbAdapter, final String token, final MPDbAdapter.Table table,
+                                          final String url, final boolean includeAutomaticEvents) {
+                final String key = table.getName() + " " + token;
+                synchronized (mActiveFlushes) {
+                    if (mActiveFlushes.containsKey(key)) {
+                        mActiveFlushes.put(key, Boolean.TRUE);
+                        return;
+                    }
+                    mActiveFlushes.put(key, Boolean.FALSE);
+                }
+
+                getFlushExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean again = true;
+                        while (again) {
+                            try {
+                                sendData(dbAdapter, token, table, url, includeAutomaticEvents);
+                            } catch (final RuntimeException e) {
+                                MPLog.e(LOGTAG, "Flush of " + table.getName() + " threw an unhandled exception", e);
+                            }
+                            synchronized (mActiveFlushes) {
+                                again = mActiveFlushes.get(key);
+                                if (again) {
+                                    mActiveFlushes.put(key, Boolean.FALSE);
+                                } else {
+                                    mActiveFlushes.remove(key);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+
+            private synchronized Executor getFlushExecutor() {
+                if (null == mFlushExecutor) {
+                    mFlushExecutor = new ThreadPoolExecutor(FLUSH_THREADS, FLUSH_THREADS, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory("com.mixpanel.android.AnalyticsFlush"));
+                    mFlushExecutor.allowCoreThreadTimeOut(true);
+                }
+                return mFlushExecutor;
+            }
+
+            // Flushes the token's queues after delayMillis, unless a retry for it is already due
+            // sooner. A flush covers every table of the token, and a table still backing off then
+            // schedules its own retry, so keeping only the earliest one loses nothing.
+            // Called on the worker thread, or on a flush thread.
+            private void scheduleRetry(String token, long delayMillis) {
+                final long due = SystemClock.uptimeMillis() + delayMillis;
+                synchronized (mScheduledRetries) {
+                    final Long scheduled = mScheduledRetries.get(token);
+                    if (null != scheduled && scheduled <= due && scheduled >= SystemClock.uptimeMillis() &&
+                            hasMessages(FLUSH_QUEUE, token)) {
+                        return;
+                    }
+                    removeMessages(FLUSH_QUEUE, token);
+                    final Message flushMessage = Message.obtain();
+                    flushMessage.what = FLUSH_QUEUE;
+                    flushMessage.obj = token;
+                    sendMessageAtTime(flushMessage, due);
+                    mScheduledRetries.put(token, due);
+                }
+            }
+
+            // Called on the worker thread, or on a flush thread (see scheduleSendData)
+            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url, boolean includeAutomaticEvents) {
+                final String retryKey = RetryScheduler.key(url, token);
+                final RetryScheduler.Permit permit = mRetryScheduler.acquire(retryKey, SystemClock.elapsedRealtime());
+                if (permit == RetryScheduler.Permit.DENIED) {
+                    // The flush that brought us here may have been for another table of the token,
+                    // so make sure one comes back when this endpoint's backoff is over. While a
+                    // probe is in flight the remaining delay is 0, and the probe reschedules.
+                    final long remaining = mRetryScheduler.getRemainingDelay(retryKey, SystemClock.elapsedRealtime());
+                    if (remaining > 0) {
+                        scheduleRetry(token, remaining);
+                    }
+                    logAboutMessageToMixpanel("Not posting to " + url + " yet, it failed recently and is backing off.");
+                    return;
+                }
+
+                final RemoteService poster = getPoster();
+                // Up to maxInFlight batches are sent at once, but their results are handled in
+                // queue order, so rows are only ever deleted from the front of the queue. An
+                // endpoint that has been failing gets a single batch first, to probe whether it
+                // has recovered.
+                boolean probing = permit == RetryScheduler.Permit.PROBE;
+                int maxInFlight = probing ? 1 : Math.max(1, mConfig.getMaxInFlightBatches());
+                final LinkedList<BatchUpload> inFlight = new LinkedList<BatchUpload>();
+                String lastQueuedId = null;
+                boolean moreData = true;
+
+                try {
+                    while (true) {
+                        while (moreData && inFlight.size() < maxInFlight) {
+                            final int batchSize = null == mFlushController ? Integer.MAX_VALUE : mFlushController.getBatchSize(retryKey);
+                            final String[] eventsData;
+                            synchronized (dbAdapter) {
+                                // After a hard kill the database is gone, and reading it would recreate it
+                                if (mDead) {
+                                    return;
+                                }
+                                eventsData = mConfig.getIdempotentUploads() ?
+                                        dbAdapter.generateLedgerBatch(table, token, includeAutomaticEvents, lastQueuedId, batchSize) :
+                                        dbAdapter.generateDataString(table, token, includeAutomaticEvents, lastQueuedId, batchSize);
+                            }
+                            if (null == eventsData) {
+                                moreData = false;
+                                break;
+                            }
+                            lastQueuedId = eventsData[0];
+                            final String batchId = eventsData.length > 3 ? eventsData[3] : null;
+                            final BatchUpload upload = new BatchUpload(poster, url, eventsData[0], eventsData[1], batchId);
+                            inFlight.add(upload);
+                            upload.submit();
+                        }
+
+                        if (inFlight.isEmpty()) {
+                            break;
+                        }
+
+                        final BatchUpload upload = inFlight.removeFirst();
+                        upload.await();
+                        if (null != mFlushController) {
+                            mFlushController.onBatchSent(retryKey, upload.mLatency, upload.mDeleteEvents);
+                        }
+
+                        if (upload.mDeleteEvents) {
+                            final long reconnectedAt = mReconnectedAt;
+                            if (reconnectedAt >= 0 && mReconnectDeliveries.add(url)) {
+                                final long millis = SystemClock.elapsedRealtime() - reconnectedAt;
+                                logAboutMessageToMixpanel("Delivered to " + url + " " + millis + " ms after the network became available");
+                                final FlushStatsListener statsListener = mConfig.getFlushStatsListener();
+                                if (null != statsListener) {
+                                    statsListener.onDeliveredAfterReconnect(url, millis);
+                                }
+                            }
+                            if (probing) {
+                                probing = false;
+                                maxInFlight = Math.max(1, mConfig.getMaxInFlightBatches());
+                                mRetryScheduler.onSuccess(retryKey);
+                                logAboutMessageToMixpanel(url + " has recovered, sending the rest of the queue.");
+                            }
+                            logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
+                            synchronized (dbAdapter) {
+                                if (mDead) {
+                                    return;
+                                }
+                                dbAdapter.cleanupEvents(upload.mLastId, table, token, includeAutomaticEvents);
+                            }
+                        } else {
+                            // Later batches can't be deleted without deleting this one, so they
+                            // will be sent again with it.
+                            for (final BatchUpload abandoned : inFlight) {
+                                abandoned.await();
+                            }
+                            final long retryAfter = mRetryScheduler.onFailure(retryKey, SystemClock.elapsedRealtime(), upload.mRetryAfter);
+                            probing = false;
+                            scheduleRetry(token, retryAfter);
+                            logAboutMessageToMixpanel("Retrying this batch of events in " + retryAfter + " ms");
+                            break;
+                        }
+                    }
+                } finally {
+                    // A probe that ended without a result, say because it threw, mustn't keep
+                    // the endpoint closed for good.
+                    if (probing) {
+                        mRetryScheduler.release(retryKey);
+                    }
+                }
+            }
+
+            // Posts one batch through RemoteTransport.submitRequest, or performRequest for a plain
+            // RemoteService. The callback runs on a thread owned by the poster, so it must not
+            // touch handler state: results are read by sendData after await().
+            private class BatchUpload implements RemoteTransport.ResponseCallback {
+                public BatchUpload(RemoteService poster, String url, String lastId, String rawMessage, String batchId) {
+                    mPoster = poster;
+                    mUrl = url;
+                    mLastId = lastId;
+                    mRawMessage = rawMessage;
+                    mBatchId = batchId;
+                }
+
+                public void submit() {
+                    if (!(mPoster instanceof RemoteTransport)) {
+                        submitBlocking();
+                        return;
+                    }
+
+                    // Encoded straight into the request body by the poster. Compressed uploads skip
+                    // Base64, since the endpoints also accept plain JSON and Base64 compresses badly.
+                    final boolean compress = mConfig.getCompressUploads();
+                    final Map<String, Object> params = new HashMap<String, Object>();
+                    params.put("data", compress ? new TextFormParameter(mRawMessage) : new Base64FormParameter(mRawMessage));
+                    if (MPConfig.DEBUG) {
+                        params.put("verbose", "1");
+                    }
+
+                    mStart = SystemClock.elapsedRealtime();
+                    final int uploadDeadline = mConfig.getUploadDeadline();
+                    final long deadline = uploadDeadline > 0 ? mStart + uploadDeadline : RemoteTransport.Request.NO_DEADLINE;
+                    final RemoteTransport.Request request = new RemoteTransport.Request(mUrl, params, mConfig.getSSLSocketFactory(),
+                            compress, mConfig.getUploadStatsListener(), deadline, mBatchId);
+                    try {
+                        ((RemoteTransport) mPoster).submitRequest(request, this);
+                    } catch (final RuntimeException e) {
+                        // Most likely the poster's threads are shutting down
+                        onFailure(e);
+                    }
+                }
+
+                // A plain RemoteService only has the blocking, uncompressed performRequest, so the
+                // batch is posted on the calling thread, without a deadline or idempotency key.
+                private void submitBlocking() {
                     final Map<String, Object> params = new HashMap<String, Object>();
-                    params.put("data", encodedData);
+                    params.put("data", Base64Coder.encodeString(mRawMessage));
                     if (MPConfig.DEBUG) {
                         params.put("verbose", "1");
                     }
 
-                    boolean deleteEvents = true;
-                    byte[] response;
+                    mStart = SystemClock.elapsedRealtime();
+                    final byte[] response;
+                    try {
+                        response = mPoster.performRequest(mUrl, params, mConfig.getSSLSocketFactory());
+                    } catch (final RemoteService.ServiceUnavailableException e) {
+                        onFailure(e);
+                        return;
+                    } catch (final IOException e) {
+                        onFailure(e);
+                        return;
+                    } catch (final RuntimeException e) {
+                        onFailure(e);
+                        return;
+                    } catch (final OutOfMemoryError e) {
+                        onFailure(new RemoteTransport.OutOfMemoryException("Out of memory sending request to " + mUrl, e));
+                        return;
+                    }
+                    onResponse(response);
+                }
+
+                @Override
+                public void onResponse(byte[] response) {
                     try {
-                        final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        response = poster.performRequest(url, params, socketFactory);
                         if (null == response) {
-                            deleteEvents = false;
-                            logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
+                            mDeleteEvents = false;
+                            logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + mUrl + ".");
                         } else {
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
+                            mDeleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
                             String parsedResponse;
                             try {
                                 parsedResponse = new String(response, "UTF-8");
                             } catch (UnsupportedEncodingException e) {
                                 throw new RuntimeException("UTF not supported on this platform?", e);
                             }
-                            if (mFailedRetries > 0) {
-                                mFailedRetries = 0;
-                                removeMessages(FLUSH_QUEUE, token);
-                            }
 
-                            logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
+                            logAboutMessageToMixpanel("Successfully posted to " + mUrl + ": \n" + mRawMessage);
                             logAboutMessageToMixpanel("Response was " + parsedResponse);
                         }
-                    } catch (final OutOfMemoryError e) {
-                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                    } catch (final MalformedURLException e) {
-                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                    } catch (final RemoteService.ServiceUnavailableException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                        mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
-                    } catch (final SocketTimeoutException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                    } catch (final IOException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
+                    } catch (final RuntimeException e) {
+                        mFailure = e;
+                    } finally {
+                        finish();
                     }
+                }
 
-                    if (deleteEvents) {
-                        logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
-                    } else {
-                        removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
-                        break;
+                @Override
+                public void onFailure(Exception failure) {
+                    try {
+                        if (failure instanceof MalformedURLException) {
+                            // Retrying won't help, so the events are dropped
+                            MPLog.e(LOGTAG, "Cannot interpret " + mUrl + " as a URL.", failure);
+                            mDeleteEvents = true;
+                        } else if (failure instanceof RemoteTransport.OutOfMemoryException) {
+                            // The same batch would run out of memory again, and block the queue
+                            // behind it, so it is dropped
+                            MPLog.e(LOGTAG, "Out of memory when posting to " + mUrl + ".", failure);
+                            mDeleteEvents = true;
+                        } else if (failure instanceof RemoteService.ServiceUnavailableException) {
+                            logAboutMessageToMixpanel("Cannot post message to " + mUrl + ".", failure);
+                            mDeleteEvents = false;
+                            mRetryAfter = ((RemoteService.ServiceUnavailableException) failure).getRetryAfter() * 1000L;
+                        } else if (failure instanceof IOException) {
+                            if (failure instanceof SocketTimeoutException) {
+                                logAboutMessageToMixpanel("Timed out posting message to " + mUrl + ".", failure);
+                            } else {
+                                logAboutMessageToMixpanel("Cannot post message to " + mUrl + ".", failure);
+                            }
+                            mDeleteEvents = false;
+                        } else {
+                            mFailure = failure;
+                        }
+                    } finally {
+                        finish();
                     }
+                }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
+                // Waits for the post to finish, and rethrows anything the poster didn't handle
+                public void await() {
+                    boolean interrupted = false;
+                    while (true) {
+                        try {
+                            mDone.await();
+                            break;
+                        } catch (final InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (mFailure instanceof RuntimeException) {
+                        throw (RuntimeException) mFailure;
+                    } else if (null != mFailure) {
+                        throw new RuntimeException(mFailure);
                     }
                 }
+
+                private void finish() {
+                    mLatency = SystemClock.elapsedRealtime() - mStart;
+                    mDone.countDown();
+                }
+
+                private final RemoteService mPoster;
+                private final String mUrl;
+                private final String mRawMessage;
+                private final String mBatchId; // null unless MPConfig.IdempotentUploads is set
+                private final CountDownLatch mDone = new CountDownLatch(1);
+                private long mStart;
+                private Exception mFailure;
+
+                // Results, safe to read after await()
+                final String mLastId;
+                boolean mDeleteEvents;
+                long mRetryAfter = -1;
+                long mLatency;
+            }
+
+            private MPDbAdapter mDbAdapter;
+            private final DecideChecker mDecideChecker;
+            private final long mFlushInterval;
+            private final FlushController mFlushController; // null unless MPConfig.AdaptiveFlush is set
+            private final int mInsertCoalescingWindow;
+            private final List<PendingInsert> mPendingInserts;
+            private volatile long mDecideRetryAfter; // written by decide checks on the flush executor
+            private final RetryScheduler mRetryScheduler;
+            private final Set<String> mWaitingTokens = new HashSet<String>(); // tokens to flush when the network improves
+            private final Map<String, Long> mUnmeteredWaits = new HashMap<String, Long>(); // table and token -> when the queue started waiting for an unmetered network
+            private volatile long mReconnectedAt = -1;
+            private final Set<String> mReconnectDeliveries = Collections.synchronizedSet(new HashSet<String>()); // endpoints delivered to since mReconnectedAt
+            private ThreadPoolExecutor mFlushExecutor; // created on first use, see getFlushExecutor()
+            private final Map<String, Long> mScheduledRetries = new HashMap<String, Long>(); // token -> SystemClock.uptimeMillis() its retry flush is due
+            private final Map<String, Boolean> mActiveFlushes = new HashMap<String, Boolean>(); // flush key -> rerun requested
+            private final Set<String> mActiveDecideChecks = new HashSet<String>(); // tokens with a decide check waiting or running
+        }// AnalyticsMessageHandler
+
+        private class PendingInsert {
+            PendingInsert(JSONObject record, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                this.record = record;
+                this.token = token;
+                this.table = table;
+                this.isAutomatic = isAutomatic;
             }
 
-            private JSONObject getDefaultEventProperties()
-                    throws JSONException {
-                final JSONObject ret = new JSONObject();
+            boolean hasSameDestination(PendingInsert other) {
+                return table == other.table && isAutomatic == other.isAutomatic && token.equals(other.token);
+            }
+
+            final JSONObject record;
+            final String token;
+            final MPDbAdapter.Table table;
+            final boolean isAutomatic;
+        }
+
+        // Called on the worker thread, or on an enrichment thread (see enrichEvent), so it
+        // must only read state that is safe to share. Returns a new object the caller may
+        // modify, copied from a snapshot that is shared between events.
+        private JSONObject getDefaultEventProperties()
+                throws JSONException {
+            final long cacheDuration = mConfig.getDefaultPropertiesCacheDuration();
+            final long now = SystemClock.elapsedRealtime();
+            DefaultPropertiesSnapshot snapshot = mDefaultProperties;
+            if (null == snapshot || now >= snapshot.expiresAt || snapshot.generation != mDefaultPropertiesGeneration.get()) {
+                // Read before querying, so a change reported while we query invalidates the result
+                final int generation = mDefaultPropertiesGeneration.get();
+                final JSONObject properties = copyProperties(getStaticEventProperties());
+                addDynamicEventProperties(properties);
+                snapshot = new DefaultPropertiesSnapshot(properties, now + Math.max(0, cacheDuration), generation);
+                // Racing threads may each build a snapshot, any of them is correct
+                mDefaultProperties = snapshot;
+            }
+            return copyProperties(snapshot.properties);
+        }
+
+        // Properties that can't change while the app is running, computed once
+        private JSONObject getStaticEventProperties() throws JSONException {
+            JSONObject ret = mStaticEventProperties;
+            if (null != ret) {
+                return ret;
+            }
+
+            ret = new JSONObject();
 
-                ret.put("mp_lib", "android");
-                ret.put("$lib_version", MPConfig.VERSION);
+            ret.put("mp_lib", "android");
+            ret.put("$lib_version", MPConfig.VERSION);
 
-                // For querying together with data from other libraries
-                ret.put("$os", "Android");
-                ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+            // For querying together with data from other libraries
+            ret.put("$os", "Android");
+            ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
 
-                ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
-                ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
-                ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+            ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
+            ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
+            ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
 
+            try {
                 try {
-                    try {
-                        final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
-                        switch (servicesAvailable) {
-                            case ConnectionResult.SUCCESS:
-                                ret.put("$google_play_services", "available");
-                                break;
-                            case ConnectionResult.SERVICE_MISSING:
-                                ret.put("$google_play_services", "missing");
-                                break;
-                            case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
-                                ret.put("$google_play_services", "out of date");
-                                break;
-                            case ConnectionResult.SERVICE_DISABLED:
-                                ret.put("$google_play_services", "disabled");
-                                break;
-                            case ConnectionResult.SERVICE_INVALID:
-                                ret.put("$google_play_services", "invalid");
-                                break;
-                        }
-                    } catch (RuntimeException e) {
-                        // Turns out even checking for the service will cause explosions
-                        // unless we've set up meta-data
-                        ret.put("$google_play_services", "not configured");
+                    final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
+                    switch (servicesAvailable) {
+                        case ConnectionResult.SUCCESS:
+                            ret.put("$google_play_services", "available");
+                            break;
+                        case ConnectionResult.SERVICE_MISSING:
+                            ret.put("$google_play_services", "missing");
+                            break;
+                        case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
+                            ret.put("$google_play_services", "out of date");
+                            break;
+                        case ConnectionResult.SERVICE_DISABLED:
+                            ret.put("$google_play_services", "disabled");
+                            break;
+                        case ConnectionResult.SERVICE_INVALID:
+                            ret.put("$google_play_services", "invalid");
+                            break;
                     }
-
-                } catch (NoClassDefFoundError e) {
-                    ret.put("$google_play_services", "not included");
+                } catch (RuntimeException e) {
+                    // Turns out even checking for the service will cause explosions
+                    // unless we've set up meta-data
+                    ret.put("$google_play_services", "not configured");
                 }
 
-                final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
-                ret.put("$screen_dpi", displayMetrics.densityDpi);
-                ret.put("$screen_height", displayMetrics.heightPixels);
-                ret.put("$screen_width", displayMetrics.widthPixels);
+            } catch (NoClassDefFoundError e) {
+                ret.put("$google_play_services", "not included");
+            }
+
+            final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
+            ret.put("$screen_dpi", displayMetrics.densityDpi);
+            ret.put("$screen_height", displayMetrics.heightPixels);
+            ret.put("$screen_width", displayMetrics.widthPixels);
 
-                final String applicationVersionName = mSystemInformation.getAppVersionName();
-                if (null != applicationVersionName) {
-                    ret.put("$app_version", applicationVersionName);
-                    ret.put("$app_version_string", applicationVersionName);
-                }
+            final String applicationVersionName = mSystemInformation.getAppVersionName();
+            if (null != applicationVersionName) {
+                ret.put("$app_version", applicationVersionName);
+                ret.put("$app_version_string", applicationVersionName);
+            }
 
-                 final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
-                 if (null != applicationVersionCode) {
-                    final String applicationVersion = String.valueOf(applicationVersionCode);
-                    ret.put("$app_release", applicationVersion);
-                    ret.put("$app_build_number", applicationVersion);
-                }
+             final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
+             if (null != applicationVersionCode) {
+                final String applicationVersion = String.valueOf(applicationVersionCode);
+                ret.put("$app_release", applicationVersion);
+                ret.put("$app_build_number", applicationVersion);
+            }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC)
-                    ret.put("$has_nfc", hasNFC.booleanValue());
+            final Boolean hasNFC = mSystemInformation.hasNFC();
+            if (null != hasNFC)
+                ret.put("$has_nfc", hasNFC.booleanValue());
 
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony)
-                    ret.put("$has_telephone", hasTelephony.booleanValue());
+            final Boolean hasTelephony = mSystemInformation.hasTelephony();
+            if (null != hasTelephony)
+                ret.put("$has_telephone", hasTelephony.booleanValue());
 
-                final String carrier = mSystemInformation.getCurrentNetworkOperator();
-                if (null != carrier && !carrier.trim().isEmpty())
-                    ret.put("$carrier", carrier);
+            final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+            if (bluetoothVersion != null)
+                ret.put("$bluetooth_version", bluetoothVersion);
 
-                final Boolean isWifi = mSystemInformation.isWifiConnected();
-                if (null != isWifi)
-                    ret.put("$wifi", isWifi.booleanValue());
+            mStaticEventProperties = ret;
+            return ret;
+        }
 
-                final String radio = mSystemInformation.getPhoneRadioType(mContext);
-                if (null != radio)
-                    ret.put("$radio", radio);
+        // Properties that follow the device's network and Bluetooth state. These need system
+        // service calls, so they are only refreshed when a broadcast reports a change, or
+        // when MPConfig.DefaultPropertiesCacheDuration has passed.
+        private void addDynamicEventProperties(JSONObject ret) throws JSONException {
+            final String carrier = mSystemInformation.getCurrentNetworkOperator();
+            if (null != carrier && !carrier.trim().isEmpty())
+                ret.put("$carrier", carrier);
+
+            final Boolean isWifi = mSystemInformation.isWifiConnected();
+            if (null != isWifi)
+                ret.put("$wifi", isWifi.booleanValue());
+
+            final String radio = mSystemInformation.getPhoneRadioType(mContext);
+            if (null != radio)
+                ret.put("$radio", radio);
+
+            final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
+            if (isBluetoothEnabled != null)
+                ret.put("$bluetooth_enabled", isBluetoothEnabled);
+        }
 
-                final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
-                if (isBluetoothEnabled != null)
-                    ret.put("$bluetooth_enabled", isBluetoothEnabled);
+        private JSONObject copyProperties(JSONObject properties) throws JSONException {
+            final JSONObject ret = new JSONObject();
+            for (final Iterator<?> iter = properties.keys(); iter.hasNext();) {
+                final String key = (String) iter.next();
+                ret.put(key, properties.get(key));
+            }
+            return ret;
+        }
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
+        // Invalidates the cached default properties when connectivity or Bluetooth state changes
+        private void registerDefaultPropertiesReceiver() {
+            final IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+            filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+            final BroadcastReceiver receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    mDefaultPropertiesGeneration.incrementAndGet();
+                }
+            };
+            try {
+                mContext.registerReceiver(receiver, filter);
+                synchronized (this) {
+                    mDefaultPropertiesReceiver = receiver;
+                }
+            } catch (final RuntimeException e) {
+                MPLog.w(LOGTAG, "Could not listen for network changes, default event properties will be refreshed every " +
+                        mConfig.getDefaultPropertiesCacheDuration() + " milliseconds", e);
+            }
+        }
 
-                return ret;
+        // Called when the worker is killed, so the context doesn't keep the receiver, and the
+        // Worker with it, alive
+        private void unregisterDefaultPropertiesReceiver() {
+            final BroadcastReceiver receiver;
+            synchronized (this) {
+                receiver = mDefaultPropertiesReceiver;
+                mDefaultPropertiesReceiver = null;
+            }
+            if (null != receiver) {
+                try {
+                    mContext.unregisterReceiver(receiver);
+                } catch (final RuntimeException e) {
+                    MPLog.w(LOGTAG, "Could not stop listening for network changes", e);
+                }
             }
+        }
 
-            private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
-                final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject sendProperties = getDefaultEventProperties();
-                sendProperties.put("token", eventDescription.getToken());
-                if (eventProperties != null) {
-                    for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
-                        final String key = (String) iter.next();
-                        sendProperties.put(key, eventProperties.get(key));
-                    }
+        private class DefaultPropertiesSnapshot {
+            DefaultPropertiesSnapshot(JSONObject properties, long expiresAt, int generation) {
+                this.properties = properties;
+                this.expiresAt = expiresAt;
+                this.generation = generation;
+            }
+
+            final JSONObject properties; // never modified once published
+            final long expiresAt;
+            final int generation;
+        }
+
+        private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
+            final JSONObject eventObj = new JSONObject();
+            final JSONObject eventProperties = eventDescription.getProperties();
+            final JSONObject sendProperties = getDefaultEventProperties();
+            sendProperties.put("token", eventDescription.getToken());
+            if (eventProperties != null) {
+                for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
+                    final String key = (String) iter.next();
+                    sendProperties.put(key, eventProperties.get(key));
                 }
-                eventObj.put("event", eventDescription.getEventName());
-                eventObj.put("properties", sendProperties);
-                eventObj.put("$mp_metadata", eventDescription.getSessionMetadata());
-                return eventObj;
             }
+            eventObj.put("event", eventDescription.getEventName());
+            eventObj.put("properties", sendProperties);
+            eventObj.put("$mp_metadata", eventDescription.getSessionMetadata());
+            return eventObj;
+        }
 
-            private MPDbAdapter mDbAdapter;
-            private final DecideChecker mDecideChecker;
-            private final long mFlushInterval;
-            private long mDecideRetryAfter;
-            private long mTrackEngageRetryAfter;
-            private int mFailedRetries;
-        }// AnalyticsMessageHandler
+        private class BackgroundThreadFactory implements ThreadFactory {
+            public BackgroundThreadFactory(String name) {
+                mName = name;
+            }
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, mName);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+
+            private final String mName;
+        }
 
         private void updateFlushFrequency() {
             final long now = System.currentTimeMillis();
@@ -767,10 +1600,19 @@ import javax.net.ssl.SSLSocketFactory;
 
         private final Object mHandlerLock = new Object();
         private Handler mHandler;
+        private volatile boolean mDead = false;
+        private final EventQueue<EventDescription> mEventQueue;
+        private final AtomicBoolean mEventDrainScheduled;
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
         private long mLastFlushTime = -1;
-        private SystemInformation mSystemInformation;
+        private final SystemInformation mSystemInformation;
+        private volatile JSONObject mStaticEventProperties; // never modified once published
+        private volatile DefaultPropertiesSnapshot mDefaultProperties;
+        private final AtomicInteger mDefaultPropertiesGeneration; // incremented when connectivity or Bluetooth state changes
+        private BroadcastReceiver mDefaultPropertiesReceiver; // null unless registered, guarded by this
+        private final ConnectivityMonitor mConnectivityMonitor; // null unless MPConfig.NetworkAwareFlush is set
+        private final ThreadPoolExecutor mEnrichmentExecutor;
     }
 
     public long getTrackEngageRetryAfter() {
@@ -793,7 +1635,15 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people/group updates from the db
     private static final int CLEAR_ANONYMOUS_UPDATES = 7; // Remove anonymous people updates from DB
     private static final int REWRITE_EVENT_PROPERTIES = 8; // Update or add properties to existing queued events
+    private static final int DRAIN_PENDING_INSERTS = 9; // Write records held for a coalesced insert to the DB
+    private static final int CLOSE_DATABASE = 10; // Release the long-lived DB connection, it will be reopened on demand
+    private static final int DRAIN_EVENT_QUEUE = 11; // Store events waiting in the lock-free event queue
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
+    private static final int CONNECTIVITY_CHANGED = 13; // The network came or went, or became metered or unmetered
+
+    private static final long RETRY_BASE_DELAY_MILLIS = 60 * 1000;
+    private static final long RETRY_MAX_DELAY_MILLIS = 10 * 60 * 1000;
+    private static final int FLUSH_THREADS = 3; // One for each uploaded table, decide checks share them
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
 
@@ -0,0 +1,591 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.SharedPreferences;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * SharedPreferences kept in a compact binary log instead of an XML file.
+ *
+ * Committing an edit appends one record holding just the changed values, rather than rewriting
+ * every value the way SharedPreferences does, and loading maps the file and replays the records.
+ * When the log grows to twice the size of its live values it is compacted, by writing a single
+ * record of all values to a new file and renaming it over the old one.
+ *
+ * The file starts with a magic number and a format version. Each record is its payload length,
+ * the CRC32 of its payload, and the payload, a sequence of clear, put and remove operations.
+ * A record cut short by a crash, or with the wrong checksum, is discarded along with anything
+ * after it, so each commit is applied entirely or not at all.
+ *
+ * Listeners are called on the thread that made the edit, not the main thread.
+ */
+/* package */ class BinaryPreferences implements SharedPreferences {
+
+    /**
+     * Loads preferences from file. If the file doesn't exist yet, the values in migrateFrom
+     * (if any) are copied into a new file, and then cleared from migrateFrom.
+     *
+     * Should be called from a background thread, since it reads from and may write to disk.
+     */
+    public BinaryPreferences(File file, SharedPreferences migrateFrom) {
+        mFile = file;
+        mValues = new HashMap<String, Object>();
+        mListeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+        mPendingBatches = new ArrayList<byte[]>();
+
+        synchronized (mFileLock) {
+            if (!mFile.exists() && null != migrateFrom) {
+                final Map<String, ?> migrated = migrateFrom.getAll();
+                if (!migrated.isEmpty()) {
+                    for (final Map.Entry<String, ?> entry : migrated.entrySet()) {
+                        if (null != entry.getValue()) {
+                            mValues.put(entry.getKey(), copyValue(entry.getValue()));
+                        }
+                    }
+                    if (!compact()) {
+                        // Without a file, the next load tries the migration again, instead of
+                        // finding an empty file and ignoring the values left in migrateFrom.
+                        MPLog.e(LOGTAG, "Cannot move preferences into " + mFile + ", changes will not be saved.");
+                        return;
+                    }
+                    migrateFrom.edit().clear().commit();
+                }
+            }
+
+            if (null == mLog) {
+                load();
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (this) {
+            final Map<String, Object> ret = new HashMap<String, Object>(mValues.size());
+            for (final Map.Entry<String, Object> entry : mValues.entrySet()) {
+                ret.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return ret;
+        }
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        final Object value = mValues.get(key);
+        return value instanceof Set ? new HashSet<String>((Set<String>) value) : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Float ? (Float) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new BinaryEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.put(listener, LISTENER_PRESENT);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    // Size of the file on disk, for testing
+    /* package */ long getFileLength() {
+        synchronized (mFileLock) {
+            return mLogLength;
+        }
+    }
+
+    private class BinaryEditor implements Editor {
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, null == values ? null : new HashSet<String>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, REMOVED);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            if (!commitToMemory()) {
+                return true;
+            }
+            return writeToDisk();
+        }
+
+        @Override
+        public void apply() {
+            if (!commitToMemory()) {
+                return;
+            }
+            WriteBehindPreferences.getWriter().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeToDisk();
+                }
+            });
+        }
+
+        private synchronized Editor put(String key, Object value) {
+            // As with SharedPreferences, putting null is the same as removing the key
+            mEdits.put(key, null == value ? REMOVED : value);
+            return this;
+        }
+
+        // Applies the edits to the in memory values, and queues them to be written. Returns false if nothing changed.
+        private boolean commitToMemory() {
+            final Map<String, Object> edits;
+            final boolean clear;
+            synchronized (this) {
+                edits = new HashMap<String, Object>(mEdits);
+                clear = mClear;
+                mEdits.clear();
+                mClear = false;
+            }
+
+            final Set<String> changedKeys = new HashSet<String>();
+            final Set<OnSharedPreferenceChangeListener> listeners;
+            synchronized (BinaryPreferences.this) {
+                if (clear && !mValues.isEmpty()) {
+                    changedKeys.addAll(mValues.keySet());
+                    mValues.clear();
+                }
+                for (final Map.Entry<String, Object> edit : edits.entrySet()) {
+                    final String key = edit.getKey();
+                    final Object value = edit.getValue();
+                    final Object previous = value == REMOVED ? mValues.remove(key) : mValues.put(key, value);
+                    if (value == REMOVED ? null != previous : !value.equals(previous)) {
+                        changedKeys.add(key);
+                    }
+                }
+                if (!clear && changedKeys.isEmpty()) {
+                    return false;
+                }
+                mPendingBatches.add(encodeBatch(clear, edits));
+                listeners = new HashSet<OnSharedPreferenceChangeListener>(mListeners.keySet());
+            }
+
+            for (final OnSharedPreferenceChangeListener listener : listeners) {
+                for (final String key : changedKeys) {
+                    listener.onSharedPreferenceChanged(BinaryPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        private final Map<String, Object> mEdits = new HashMap<String, Object>();
+        private boolean mClear = false;
+    }
+
+    // Appends every queued batch to the log, in the order they were committed to memory
+    private boolean writeToDisk() {
+        synchronized (mFileLock) {
+            final List<byte[]> batches;
+            synchronized (this) {
+                if (mPendingBatches.isEmpty()) {
+                    return true; // Already written with an earlier batch
+                }
+                batches = new ArrayList<byte[]>(mPendingBatches);
+                mPendingBatches.clear();
+            }
+
+            if (null == mLog) {
+                return false;
+            }
+
+            try {
+                for (final byte[] batch : batches) {
+                    appendRecord(batch);
+                }
+                mLog.force(false);
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Cannot write to " + mFile, e);
+                return false;
+            }
+
+            if (mLogLength > COMPACT_MIN_BYTES && mLogLength > 2 * mCompactedLength) {
+                synchronized (this) {
+                    return compact();
+                }
+            }
+            return true;
+        }
+    }
+
+    // Must be called while holding mFileLock
+    private void load() {
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            mLog = file.getChannel();
+            final long size = mLog.size();
+            if (size < HEADER_BYTES) {
+                writeHeader();
+                mCompactedLength = mLogLength;
+                return;
+            }
+
+            final MappedByteBuffer buffer = mLog.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final int magic = buffer.getInt();
+            final int version = buffer.get();
+            if (magic != MAGIC || version != FORMAT_VERSION) {
+                MPLog.e(LOGTAG, mFile + " is not a Mixpanel preferences file in a format we understand, and will be replaced.");
+                mLog.truncate(0);
+                writeHeader();
+                mCompactedLength = mLogLength;
+                return;
+            }
+
+            final CRC32 crc = new CRC32();
+            long validLength = buffer.position();
+            synchronized (this) {
+                while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                    final int length = buffer.getInt();
+                    final int checksum = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    final byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    replay(ByteBuffer.wrap(payload));
+                    validLength = buffer.position();
+                }
+            }
+
+            if (validLength < size) {
+                MPLog.w(LOGTAG, "Discarding " + (size - validLength) + " bytes of incomplete writes from " + mFile);
+                mLog.truncate(validLength);
+            }
+            mLogLength = validLength;
+            mCompactedLength = validLength;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Cannot read " + mFile + ", values will not be saved.", e);
+            closeLog();
+        } catch (final RuntimeException e) {
+            // Thrown by a malformed record that passed its checksum, which shouldn't happen
+            MPLog.e(LOGTAG, "Cannot parse " + mFile + ", values will not be saved.", e);
+            closeLog();
+        }
+    }
+
+    // Must be called while holding this and mFileLock. Replaces the file with one holding only the
+    // current values. If that fails the existing file, if any, is left in use.
+    private boolean compact() {
+        final File temporary = new File(mFile.getPath() + ".tmp");
+        final FileChannel previousLog = mLog;
+        final long previousLength = mLogLength;
+        try {
+            mLog = new RandomAccessFile(temporary, "rw").getChannel();
+            mLog.truncate(0);
+            writeHeader();
+            appendRecord(encodeBatch(true, mValues));
+            mLog.force(false);
+            closeLog();
+
+            if (!temporary.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + temporary + " to " + mFile);
+            }
+            mLog = new RandomAccessFile(mFile, "rw").getChannel();
+            mLogLength = mLog.size();
+            mCompactedLength = mLogLength;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Cannot compact " + mFile, e);
+            closeLog();
+            temporary.delete();
+            mLog = previousLog;
+            mLogLength = previousLength;
+            return false;
+        }
+
+        if (null != previousLog) {
+            try {
+                previousLog.close();
+            } catch (final IOException e) {
+                MPLog.w(LOGTAG, "Cannot close " + mFile, e);
+            }
+        }
+        return true;
+    }
+
+    // Must be called while holding mFileLock
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.put(FORMAT_VERSION);
+        header.flip();
+        mLog.position(0);
+        writeFully(header);
+        mLogLength = HEADER_BYTES;
+    }
+
+    // Must be called while holding mFileLock
+    private void appendRecord(byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        mLog.position(mLogLength);
+        writeFully(record);
+        mLogLength += RECORD_HEADER_BYTES + payload.length;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mLog.write(buffer);
+        }
+    }
+
+    private void closeLog() {
+        if (null != mLog) {
+            try {
+                mLog.close();
+            } catch (final IOException e) {
+                MPLog.w(LOGTAG, "Cannot close " + mFile, e);
+            }
+            mLog = null;
+        }
+    }
+
+    // Must be called while holding this
+    private void replay(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            final byte op = payload.get();
+            if (op == OP_CLEAR) {
+                mValues.clear();
+            } else if (op == OP_REMOVE) {
+                mValues.remove(readString(payload));
+            } else if (op == OP_PUT) {
+                final String key = readString(payload);
+                mValues.put(key, readValue(payload));
+            } else {
+                throw new IllegalStateException("Unknown operation " + op);
+            }
+        }
+    }
+
+    private static byte[] encodeBatch(boolean clear, Map<String, Object> edits) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (clear) {
+                out.writeByte(OP_CLEAR);
+            }
+            for (final Map.Entry<String, Object> edit : edits.entrySet()) {
+                final Object value = edit.getValue();
+                if (value == REMOVED) {
+                    if (!clear) {
+                        out.writeByte(OP_REMOVE);
+                        writeString(out, edit.getKey());
+                    }
+                } else {
+                    out.writeByte(OP_PUT);
+                    writeString(out, edit.getKey());
+                    writeValue(out, value);
+                }
+            }
+            out.flush();
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't write to an in memory stream", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Set) {
+            final Set<String> strings = (Set<String>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(strings.size());
+            for (final String s : strings) {
+                writeString(out, s);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't store values of " + value.getClass());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) {
+        final byte type = in.get();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_STRING_SET:
+                final int count = in.getInt();
+                final Set<String> strings = new HashSet<String>(count);
+                for (int i = 0; i < count; i++) {
+                    strings.add(readString(in));
+                }
+                return strings;
+            default:
+                throw new IllegalStateException("Unknown value type " + type);
+        }
+    }
+
+    // Strings are a length and UTF-8 bytes, since writeUTF() can't hold more than 64k
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] utf8 = s.getBytes(UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object value) {
+        return value instanceof Set ? new HashSet<String>((Set<String>) value) : value;
+    }
+
+    private final File mFile;
+    private final Map<String, Object> mValues; // guarded by this
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners; // guarded by this
+    private final List<byte[]> mPendingBatches; // guarded by this, committed to memory but not yet to disk
+    private final Object mFileLock = new Object(); // Taken before this, when both are needed
+    private FileChannel mLog; // guarded by mFileLock, null if the file can't be used
+    private long mLogLength; // guarded by mFileLock
+    private long mCompactedLength; // guarded by mFileLock, the length of the log after it was last loaded or compacted
+
+    private static final Object REMOVED = new Object();
+    private static final Object LISTENER_PRESENT = new Object();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4D504250; // "MPBP"
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 5;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final long COMPACT_MIN_BYTES = 16 * 1024;
+
+    private static final byte OP_CLEAR = 0;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private static final String LOGTAG = "MixpanelAPI.BinaryPrefs";
+}
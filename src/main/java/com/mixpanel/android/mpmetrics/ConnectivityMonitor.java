@@ -0,0 +1,132 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import com.mixpanel.android.util.MPLog;
+
+/**
+ * Follows the device's connectivity through the CONNECTIVITY_ACTION broadcast, so flushes can
+ * wait for a network instead of polling for one.
+ *
+ * Without the ACCESS_NETWORK_STATE permission, or if the broadcast can't be received, the device
+ * is always reported as connected to an unmetered network, and flushes behave as if there were
+ * no monitor.
+ */
+/* package */ class ConnectivityMonitor {
+
+    public interface Listener {
+        /**
+         * Called whenever the connected or unmetered state changes, on the main thread or the
+         * thread that called start().
+         */
+        void onConnectivityChanged(boolean connected, boolean unmetered);
+    }
+
+    public ConnectivityMonitor(Context context) {
+        mContext = context;
+        mConnected = true;
+        mUnmetered = true;
+    }
+
+    public void start(Listener listener) {
+        synchronized (this) {
+            mListener = listener;
+        }
+        refresh();
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                refresh();
+            }
+        };
+        try {
+            mContext.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            synchronized (this) {
+                mReceiver = receiver;
+            }
+        } catch (final RuntimeException e) {
+            MPLog.w(LOGTAG, "Could not listen for network changes, flushes will not wait for a network", e);
+        }
+    }
+
+    /**
+     * Stops listening for network changes. The listener passed to start() is not called again.
+     */
+    public void stop() {
+        final BroadcastReceiver receiver;
+        synchronized (this) {
+            mListener = null;
+            receiver = mReceiver;
+            mReceiver = null;
+        }
+        if (null != receiver) {
+            try {
+                mContext.unregisterReceiver(receiver);
+            } catch (final RuntimeException e) {
+                MPLog.w(LOGTAG, "Could not stop listening for network changes", e);
+            }
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    public synchronized boolean isUnmetered() {
+        return mUnmetered;
+    }
+
+    // Reads the current state of the active network
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    protected void refresh() {
+        if (PackageManager.PERMISSION_GRANTED != mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
+            setState(true, true);
+            return;
+        }
+
+        final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        if (null == netInfo || !netInfo.isConnectedOrConnecting()) {
+            setState(false, false);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setState(true, !cm.isActiveNetworkMetered());
+        } else {
+            final int type = netInfo.getType();
+            setState(true, type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET);
+        }
+    }
+
+    protected void setState(boolean connected, boolean unmetered) {
+        final Listener listener;
+        synchronized (this) {
+            if (connected == mConnected && unmetered == mUnmetered) {
+                return;
+            }
+            mConnected = connected;
+            mUnmetered = unmetered;
+            listener = mListener;
+        }
+        MPLog.v(LOGTAG, "Network is now " + (connected ? (unmetered ? "unmetered" : "metered") : "unavailable"));
+        if (null != listener) {
+            listener.onConnectivityChanged(connected, unmetered);
+        }
+    }
+
+    private final Context mContext;
+    private Listener mListener; // guarded by this
+    private BroadcastReceiver mReceiver; // guarded by this
+    private boolean mConnected; // guarded by this
+    private boolean mUnmetered; // guarded by this
+
+    private static final String LOGTAG = "MixpanelAPI.Connectivity";
+}
@@ -26,7 +26,7 @@ import javax.net.ssl.SSLSocketFactory;
 
     private final MPConfig mConfig;
     private final Context mContext;
-    private final Map<String, DecideMessages> mChecks;
+    private final Map<String, DecideMessages> mChecks; // guarded by itself, checks are added and run on different threads
     private final SystemInformation mSystemInformation;
 
     private static final JSONArray EMPTY_JSON_ARRAY = new JSONArray();
@@ -51,11 +51,13 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     public void addDecideCheck(final DecideMessages check) {
-        mChecks.put(check.getToken(), check);
+        synchronized (mChecks) {
+            mChecks.put(check.getToken(), check);
+        }
     }
 
     public void runDecideCheck(final String token, final RemoteService poster) throws RemoteService.ServiceUnavailableException {
-        DecideMessages updates = mChecks.get(token);
+        DecideMessages updates = getDecideMessages(token);
         if (updates != null) {
             final String distinctId = updates.getDistinctId();
             try {
@@ -202,6 +204,8 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     public DecideMessages getDecideMessages(String token) {
-        return mChecks.get(token);
+        synchronized (mChecks) {
+            return mChecks.get(token);
+        }
     }
 }
@@ -0,0 +1,168 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue between the threads calling track() and the Mixpanel worker.
+ *
+ * This is a ring buffer where every slot carries a sequence number (D. Vyukov's bounded queue):
+ * producers and consumers claim slots with a single compare-and-set on the enqueue or dequeue
+ * position, and never take a monitor. The worker is the only regular consumer, but producers
+ * also dequeue when the overflow policy is DROP_OLDEST, so both ends are safe for many threads.
+ */
+/* package */ class EventQueue<E> {
+
+    /**
+     * What offer() does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the oldest queued element to make room */
+        DROP_OLDEST,
+        /** Discard the offered element */
+        DROP_NEWEST,
+        /** Wait for the consumer to make room, up to a timeout, then discard the offered element */
+        BLOCK;
+
+        /**
+         * Parses the names used in MPConfig meta-data: "drop_oldest", "drop_newest" or "block".
+         * Returns the default, DROP_NEWEST, for null or unknown names, so track() never waits
+         * unless asked to. It is often called on the main thread.
+         */
+        public static OverflowPolicy fromName(String name) {
+            if ("drop_oldest".equalsIgnoreCase(name)) {
+                return DROP_OLDEST;
+            } else if ("drop_newest".equalsIgnoreCase(name)) {
+                return DROP_NEWEST;
+            } else if ("block".equalsIgnoreCase(name)) {
+                return BLOCK;
+            }
+            return DROP_NEWEST;
+        }
+    }
+
+    /**
+     * @param capacity the minimum number of elements the queue holds, rounded up to a power of two
+     * @param policy what to do when the queue is full
+     * @param blockTimeoutMillis how long a BLOCK offer waits for room
+     */
+    public EventQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mPolicy = policy;
+        mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    /**
+     * Adds an element, applying the overflow policy if the queue is full. Safe to call from any thread.
+     *
+     * @return false if the offered element was discarded
+     */
+    public boolean offer(E element) {
+        if (tryOffer(element)) {
+            return true;
+        }
+
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if (null != poll()) {
+                        mDropped.incrementAndGet();
+                    }
+                } while (!tryOffer(element));
+                return true;
+            case BLOCK:
+                final long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                do {
+                    if (System.nanoTime() - deadline >= 0) {
+                        mDropped.incrementAndGet();
+                        return false;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                } while (!tryOffer(element));
+                return true;
+            default:
+                mDropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Removes and returns the oldest element, or null if the queue is empty.
+     */
+    public E poll() {
+        long position = mDequeuePosition.get();
+        while (true) {
+            final int index = (int) (position & mMask);
+            final long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mDequeuePosition.compareAndSet(position, position + 1)) {
+                    final E element = mItems.get(index);
+                    mItems.set(index, null);
+                    // Publishes the slot to the producer one lap ahead
+                    mSequences.set(index, position + mMask + 1);
+                    return element;
+                }
+                position = mDequeuePosition.get();
+            } else if (difference < 0) {
+                return null; // empty, or the producer of this slot hasn't finished writing it
+            } else {
+                position = mDequeuePosition.get();
+            }
+        }
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return the number of elements discarded by the overflow policy so far
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private boolean tryOffer(E element) {
+        long position = mEnqueuePosition.get();
+        while (true) {
+            final int index = (int) (position & mMask);
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mEnqueuePosition.compareAndSet(position, position + 1)) {
+                    mItems.set(index, element);
+                    // Publishes the element to the consumer
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mEnqueuePosition.get();
+            } else if (difference < 0) {
+                return false; // full
+            } else {
+                position = mEnqueuePosition.get();
+            }
+        }
+    }
+
+    private final int mMask;
+    private final AtomicReferenceArray<E> mItems;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mEnqueuePosition = new AtomicLong(0);
+    private final AtomicLong mDequeuePosition = new AtomicLong(0);
+    private final AtomicLong mDropped = new AtomicLong(0);
+    private final OverflowPolicy mPolicy;
+    private final long mBlockTimeoutNanos;
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+}
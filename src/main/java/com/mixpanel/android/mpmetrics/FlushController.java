@@ -0,0 +1,178 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks when to flush from how fast messages are queued and how uploads have been going, for
+ * MPConfig.AdaptiveFlush.
+ *
+ * The flush interval is the time it takes to queue one full batch, so steady traffic goes out in
+ * few, full requests. It is kept between a minimum, which bounds how often the radio wakes up,
+ * and a maximum, which bounds how long a message may wait. Slow uploads stretch the interval, so
+ * time spent uploading stays a small fraction of the total, and so does a network where uploads
+ * to every endpoint are mostly failing. A flush also starts as soon as a full batch is queued,
+ * so bursts drain without waiting for the timer.
+ *
+ * Upload results are kept separately for each endpoint and token, named by RetryScheduler.key,
+ * so one failing endpoint doesn't shrink the batches sent to the others. An endpoint's batch
+ * size is halved after a failed batch, since smaller requests are more likely to get through a
+ * poor connection, and grows back toward a full batch with each success. Only the rate messages
+ * are queued at is shared.
+ *
+ * Rates and averages decay exponentially, so old traffic stops counting after a few minutes.
+ * All methods are thread safe. Times are in milliseconds, from SystemClock.elapsedRealtime()
+ * or any other monotonic clock.
+ */
+/* package */ class FlushController {
+
+    public FlushController(long minFlushInterval, long maxFlushInterval, int fullBatch) {
+        mMinFlushInterval = minFlushInterval;
+        mMaxFlushInterval = Math.max(minFlushInterval, maxFlushInterval);
+        mFullBatch = Math.max(1, fullBatch);
+        mEnqueueRate = 0;
+        mLastEnqueueTime = -1;
+        mFlushInterval = mMaxFlushInterval;
+        mUploads = new HashMap<String, UploadStats>();
+        mBatchSizeChanged = false;
+    }
+
+    public synchronized void onEnqueued(long now) {
+        mEnqueueRate = decayedEnqueueRate(now) + 1.0 / RATE_WINDOW_MILLIS;
+        mLastEnqueueTime = now;
+    }
+
+    /**
+     * @param key the endpoint and token the batch was sent to, see RetryScheduler.key
+     */
+    public synchronized void onBatchSent(String key, long latencyMillis, boolean succeeded) {
+        UploadStats stats = mUploads.get(key);
+        if (null == stats) {
+            stats = new UploadStats(mFullBatch);
+            mUploads.put(key, stats);
+        }
+
+        if (stats.batchLatency < 0) {
+            stats.batchLatency = latencyMillis;
+        } else {
+            stats.batchLatency += (latencyMillis - stats.batchLatency) * BATCH_SMOOTHING;
+        }
+        stats.successRate += ((succeeded ? 1.0 : 0.0) - stats.successRate) * BATCH_SMOOTHING;
+
+        final int batchSize = succeeded ?
+                Math.min(mFullBatch, stats.batchSize + Math.max(1, mFullBatch / 10)) :
+                Math.max(1, stats.batchSize / 2);
+        mBatchSizeChanged |= batchSize != stats.batchSize;
+        stats.batchSize = batchSize;
+    }
+
+    /**
+     * Recomputes the flush interval.
+     *
+     * @return true if the flush interval or the batch size changed enough to be worth reporting
+     */
+    public synchronized boolean update(long now) {
+        final double perMilli = decayedEnqueueRate(now);
+        long interval = perMilli > 0 ? (long) (mFullBatch / perMilli) : mMaxFlushInterval;
+        final long batchLatency = getBatchLatency();
+        if (batchLatency > 0) {
+            interval = Math.max(interval, batchLatency * UPLOAD_COST_FACTOR);
+        }
+        if (getSuccessRate() < MIN_SUCCESS_RATE) {
+            interval = mMaxFlushInterval;
+        }
+        interval = Math.max(mMinFlushInterval, Math.min(mMaxFlushInterval, interval));
+
+        boolean changed = mBatchSizeChanged;
+        mBatchSizeChanged = false;
+        if (Math.abs(interval - mFlushInterval) > mFlushInterval / 10) {
+            mFlushInterval = interval;
+            changed = true;
+        }
+        return changed;
+    }
+
+    public synchronized long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    // A flush starts as soon as this many messages are queued
+    public int getBulkUploadLimit() {
+        return mFullBatch;
+    }
+
+    // The most records to send in one request to the endpoint and token named by key
+    public synchronized int getBatchSize(String key) {
+        final UploadStats stats = mUploads.get(key);
+        return null == stats ? mFullBatch : stats.batchSize;
+    }
+
+    // The smallest batch size of any endpoint, for reporting
+    public synchronized int getMinBatchSize() {
+        int ret = mFullBatch;
+        for (final UploadStats stats : mUploads.values()) {
+            ret = Math.min(ret, stats.batchSize);
+        }
+        return ret;
+    }
+
+    public synchronized double getEnqueueRatePerMinute(long now) {
+        return decayedEnqueueRate(now) * 60 * 1000;
+    }
+
+    // The average upload time of the slowest endpoint, or -1 until a batch has been sent
+    public synchronized long getBatchLatency() {
+        double ret = -1;
+        for (final UploadStats stats : mUploads.values()) {
+            ret = Math.max(ret, stats.batchLatency);
+        }
+        return (long) ret;
+    }
+
+    // The success rate of the most successful endpoint, so a single failing endpoint, which
+    // RetryScheduler already backs off, doesn't slow down flushes to the others
+    public synchronized double getSuccessRate() {
+        if (mUploads.isEmpty()) {
+            return 1.0;
+        }
+        double ret = 0;
+        for (final UploadStats stats : mUploads.values()) {
+            ret = Math.max(ret, stats.successRate);
+        }
+        return ret;
+    }
+
+    private double decayedEnqueueRate(long now) {
+        if (mLastEnqueueTime < 0) {
+            return 0;
+        }
+        return mEnqueueRate * Math.exp(-(now - mLastEnqueueTime) / (double) RATE_WINDOW_MILLIS);
+    }
+
+    private static class UploadStats {
+        UploadStats(int fullBatch) {
+            batchLatency = -1;
+            successRate = 1.0;
+            batchSize = fullBatch;
+        }
+
+        double batchLatency;
+        double successRate;
+        int batchSize;
+    }
+
+    private final long mMinFlushInterval;
+    private final long mMaxFlushInterval;
+    private final int mFullBatch;
+    private double mEnqueueRate; // messages per millisecond as of mLastEnqueueTime
+    private long mLastEnqueueTime;
+    private long mFlushInterval;
+    private final Map<String, UploadStats> mUploads; // RetryScheduler.key -> results of uploads there
+    private boolean mBatchSizeChanged; // since the last update()
+
+    private static final long RATE_WINDOW_MILLIS = 60 * 1000;
+    private static final double BATCH_SMOOTHING = 0.2;
+    // Flush no more often than this many times the time an upload takes, so the radio is mostly idle
+    private static final long UPLOAD_COST_FACTOR = 20;
+    private static final double MIN_SUCCESS_RATE = 0.5;
+}
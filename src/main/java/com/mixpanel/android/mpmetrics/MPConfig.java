@@ -10,6 +10,10 @@ import com.mixpanel.android.BuildConfig;
 import com.mixpanel.android.util.MPConstants;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.FlushStatsListener;
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.PersistenceStatsListener;
+import com.mixpanel.android.util.UploadStatsListener;
 
 import java.security.GeneralSecurityException;
 
@@ -81,6 +85,84 @@ import javax.net.ssl.SSLSocketFactory;
  *
  *     <dt>com.mixpanel.android.MPConfig.UseIpAddressForGeolocation</dt>
  *     <dd>A boolean value. If true, Mixpanel will automatically determine city, region and country data using the IP address of the client.Defaults to true.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.InsertCoalescingWindow</dt>
+ *     <dd>An integer number of milliseconds. If greater than zero, events, people and group updates queued within this window are written to the local database in a single transaction. Defaults to 0 (each record is written as soon as it is received).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.KeepDatabaseOpen</dt>
+ *     <dd>A boolean value. If true, the library keeps a single write-ahead-logging connection to its local database open between operations, and only closes it when the system asks the app to trim memory. If false, the database is opened and closed around every operation. Defaults to true.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxBatchSize</dt>
+ *     <dd>An integer count of messages, the maximum number of messages sent in a single upload request. This value should not be more than 50, the most the Mixpanel endpoints accept. Defaults to 50.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxBatchBytes</dt>
+ *     <dd>An integer number of bytes, the approximate maximum size of the JSON sent in a single upload request. A single message larger than this is still sent on its own. Defaults to 524288 (512 Kb).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.ValidateRecords</dt>
+ *     <dd>A boolean value. If true, every message is parsed back after it is serialized, and malformed messages are discarded instead of being queued for upload. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.CompressUploads</dt>
+ *     <dd>A boolean value. If true, events, people and group updates are uploaded as gzip compressed JSON instead of Base64 encoded JSON. Endpoints that reject compressed requests with 415 Unsupported Media Type are sent uncompressed requests instead; other errors are retried as usual. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxInFlightBatches</dt>
+ *     <dd>An integer count of upload requests. When draining a large queue, up to this many batches are sent at once over reused connections. Batches are still removed from the queue in order, so if one batch fails, the batches sent after it are sent again later even if the server already accepted them. Unless IdempotentUploads is also set, which lets the server recognize them, this duplicates those messages. Defaults to 1 (one batch at a time).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.FlushOnUploadThreads</dt>
+ *     <dd>A boolean value. If true, the events, people and groups queues are uploaded concurrently on dedicated upload threads, so new messages are stored while a flush is in progress. If false, queues are uploaded one after another on the thread that stores messages. Defaults to true.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventQueueCapacity</dt>
+ *     <dd>An integer count of events. If greater than zero, tracked events are handed to the Mixpanel thread through a lock-free queue of at least this many events instead of through its message queue. Defaults to 0 (disabled).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventQueueOverflowPolicy</dt>
+ *     <dd>What happens to a tracked event when the event queue is full: "drop_oldest" discards the oldest queued event, "drop_newest" discards the new event, and "block" waits up to EventQueueBlockTimeout for room before discarding the new event. Since track() is often called on the main thread, "block" should only be used where a short wait is acceptable. Defaults to "drop_newest".</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventQueueBlockTimeout</dt>
+ *     <dd>An integer number of milliseconds that track() waits for room in a full event queue when the overflow policy is "block". Defaults to 100.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EnrichmentThreads</dt>
+ *     <dd>An integer count of threads. If greater than zero, tracked events are combined with the default device properties on this many background threads, and the Mixpanel thread only stores them, still in the order they were tracked. Defaults to 0 (events are prepared on the Mixpanel thread).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.DefaultPropertiesCacheDuration</dt>
+ *     <dd>An integer number of milliseconds. Default event properties that depend on the network and Bluetooth state ($carrier, $wifi, $radio and $bluetooth_enabled) are reused for this long, or until the system reports a connectivity or Bluetooth change. 0 looks them up for every event. Defaults to 60000 (one minute).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.PersistenceWriteWindow</dt>
+ *     <dd>An integer number of milliseconds. If greater than zero, changes to the identity, super properties, event timings and other stored state are collected for this long and written to each SharedPreferences file with a single commit on a background thread. Pending changes are also written when the app goes to the background. Defaults to 0 (every change is applied right away).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UseBinaryIdentityStorage</dt>
+ *     <dd>A boolean value. If true, distinct ids and super properties are kept in a compact binary file in the app's files directory, which saves only the values that changed on each write, instead of a SharedPreferences XML file. Existing values are moved to the new file the first time it is used, and deleted from the XML file. Turning this off again later does not move them back, so the app starts over with a new anonymous distinct id and no super properties. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.DeferInitialization</dt>
+ *     <dd>A boolean value. If true, MixpanelAPI.getInstance returns without waiting for stored preferences, the database or the PackageManager, and the new instance loads them on a background thread. Events tracked and timed meanwhile are held, with the time they were tracked, until loading is done. Other calls wait for loading to finish. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.NetworkAwareFlush</dt>
+ *     <dd>A boolean value. If true, Mixpanel listens for connectivity changes. Scheduled flushes are suspended while the device is offline, and queued messages are sent as soon as it reconnects instead of at the next flush interval. Works best with the ACCESS_NETWORK_STATE permission. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UnmeteredBacklogThreshold</dt>
+ *     <dd>An integer count of queued messages. If greater than zero and NetworkAwareFlush is on, a queue holding more than this many messages is not uploaded over a metered network such as mobile data, but waits for an unmetered one, for at most UnmeteredBacklogMaxDelay. Defaults to 0 (queues are uploaded over any network).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UnmeteredBacklogMaxDelay</dt>
+ *     <dd>An integer number of milliseconds that a large queue waits for an unmetered network before it is uploaded over a metered one anyway. Defaults to 21600000 (six hours).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.AdaptiveFlush</dt>
+ *     <dd>A boolean value. If true, FlushInterval and BulkUploadLimit are ignored. Mixpanel measures how fast messages are queued and how long uploads take, flushes about as often as it takes to queue a full batch (MaxBatchSize messages), and starts a flush as soon as a full batch is queued. The flush interval stays between AdaptiveFlushMinInterval and AdaptiveFlushMaxInterval. After failed uploads to an endpoint, smaller batches are sent to it until uploads there succeed again. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.AdaptiveFlushMinInterval</dt>
+ *     <dd>An integer number of milliseconds, the shortest flush interval AdaptiveFlush will choose. Raise it to save battery. Defaults to 15000 (15 seconds).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.AdaptiveFlushMaxInterval</dt>
+ *     <dd>An integer number of milliseconds, the longest flush interval AdaptiveFlush will choose, and so about the longest a message waits to be sent. Defaults to 300000 (five minutes).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.ConnectTimeout</dt>
+ *     <dd>An integer number of milliseconds to wait for a connection to Mixpanel. Defaults to 2000 (two seconds).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.ReadTimeout</dt>
+ *     <dd>An integer number of milliseconds to wait for each read of a response from Mixpanel. Defaults to 30000 (30 seconds).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UploadDeadline</dt>
+ *     <dd>An integer number of milliseconds. If greater than zero, an upload request that hasn't finished this long after it was submitted, including any retries of broken connections, fails and is retried later. Defaults to 0 (only ConnectTimeout and ReadTimeout apply).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.IdempotentUploads</dt>
+ *     <dd>A boolean value. If true, each batch of messages is recorded in the database until it is confirmed, and retries resend exactly the same batch with the same Idempotency-Key header, including retries after the app restarts. Defaults to false.</dd>
  * </dl>
  *
  */
@@ -157,6 +239,48 @@ public class MPConfig {
         mOfflineMode = offlineMode;
     }
 
+    /**
+     * {@link UploadStatsListener} receives the compression ratio of every upload when
+     * com.mixpanel.android.MPConfig.CompressUploads is enabled, and is told when an endpoint
+     * rejects compressed uploads. Set it like this
+     *
+     * {@code
+     * <pre>
+     *     MPConfig.getInstance(context).setUploadStatsListener(UploadStatsListenerImplementation);
+     * </pre>
+     * }
+     *
+     * The listener may be called concurrently from several threads, the HttpService request
+     * threads and the flush threads, so it must be thread safe, and should return quickly.
+     *
+     * @param statsListener listener for upload statistics, or null to stop receiving them
+     */
+    public synchronized void setUploadStatsListener(UploadStatsListener statsListener) {
+        mUploadStatsListener = statsListener;
+    }
+
+    /**
+     * {@link PersistenceStatsListener} is told about every write Mixpanel makes to its
+     * SharedPreferences files, and how many changes each write included. Use it with
+     * com.mixpanel.android.MPConfig.PersistenceWriteWindow to see how well writes are coalesced.
+     *
+     * @param statsListener listener for preferences writes, or null to stop receiving them
+     */
+    public synchronized void setPersistenceStatsListener(PersistenceStatsListener statsListener) {
+        mPersistenceStatsListener = statsListener;
+    }
+
+    /**
+     * {@link FlushStatsListener} is told how long queued messages took to reach Mixpanel after
+     * the device reconnected, when com.mixpanel.android.MPConfig.NetworkAwareFlush is set, and
+     * about every change com.mixpanel.android.MPConfig.AdaptiveFlush makes to the flush schedule.
+     *
+     * @param statsListener listener for flush statistics, or null to stop receiving them
+     */
+    public synchronized void setFlushStatsListener(FlushStatsListener statsListener) {
+        mFlushStatsListener = statsListener;
+    }
+
     /* package */ MPConfig(Bundle metaData, Context context) {
 
         // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
@@ -192,6 +316,32 @@ public class MPConfig {
         mMinSessionDuration = metaData.getInt("com.mixpanel.android.MPConfig.MinimumSessionDuration", 10 * 1000); // 10 seconds
         mSessionTimeoutDuration = metaData.getInt("com.mixpanel.android.MPConfig.SessionTimeoutDuration", Integer.MAX_VALUE); // no timeout by default
         mUseIpAddressForGeolocation = metaData.getBoolean("com.mixpanel.android.MPConfig.UseIpAddressForGeolocation", true);
+        mInsertCoalescingWindow = metaData.getInt("com.mixpanel.android.MPConfig.InsertCoalescingWindow", 0); // disabled by default
+        mKeepDatabaseOpen = metaData.getBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", true);
+        mMaxBatchSize = metaData.getInt("com.mixpanel.android.MPConfig.MaxBatchSize", 50); // 50 records default
+        mMaxBatchBytes = metaData.getInt("com.mixpanel.android.MPConfig.MaxBatchBytes", 512 * 1024); // 512 Kb
+        mValidateRecords = metaData.getBoolean("com.mixpanel.android.MPConfig.ValidateRecords", false);
+        mCompressUploads = metaData.getBoolean("com.mixpanel.android.MPConfig.CompressUploads", false);
+        mMaxInFlightBatches = metaData.getInt("com.mixpanel.android.MPConfig.MaxInFlightBatches", 1);
+        mFlushOnUploadThreads = metaData.getBoolean("com.mixpanel.android.MPConfig.FlushOnUploadThreads", true);
+        mEventQueueCapacity = metaData.getInt("com.mixpanel.android.MPConfig.EventQueueCapacity", 0); // disabled by default
+        mEventQueueOverflowPolicy = EventQueue.OverflowPolicy.fromName(metaData.getString("com.mixpanel.android.MPConfig.EventQueueOverflowPolicy"));
+        mEventQueueBlockTimeout = metaData.getInt("com.mixpanel.android.MPConfig.EventQueueBlockTimeout", 100); // 100 ms
+        mEnrichmentThreads = metaData.getInt("com.mixpanel.android.MPConfig.EnrichmentThreads", 0); // disabled by default
+        mDefaultPropertiesCacheDuration = metaData.getInt("com.mixpanel.android.MPConfig.DefaultPropertiesCacheDuration", 60 * 1000); // one minute
+        mPersistenceWriteWindow = metaData.getInt("com.mixpanel.android.MPConfig.PersistenceWriteWindow", 0); // disabled by default
+        mUseBinaryIdentityStorage = metaData.getBoolean("com.mixpanel.android.MPConfig.UseBinaryIdentityStorage", false);
+        mDeferInitialization = metaData.getBoolean("com.mixpanel.android.MPConfig.DeferInitialization", false);
+        mNetworkAwareFlush = metaData.getBoolean("com.mixpanel.android.MPConfig.NetworkAwareFlush", false);
+        mUnmeteredBacklogThreshold = metaData.getInt("com.mixpanel.android.MPConfig.UnmeteredBacklogThreshold", 0);
+        mUnmeteredBacklogMaxDelay = metaData.getInt("com.mixpanel.android.MPConfig.UnmeteredBacklogMaxDelay", 6 * 60 * 60 * 1000);
+        mAdaptiveFlush = metaData.getBoolean("com.mixpanel.android.MPConfig.AdaptiveFlush", false);
+        mAdaptiveFlushMinInterval = metaData.getInt("com.mixpanel.android.MPConfig.AdaptiveFlushMinInterval", 15 * 1000);
+        mAdaptiveFlushMaxInterval = metaData.getInt("com.mixpanel.android.MPConfig.AdaptiveFlushMaxInterval", 5 * 60 * 1000);
+        mConnectTimeout = metaData.getInt("com.mixpanel.android.MPConfig.ConnectTimeout", HttpService.DEFAULT_CONNECT_TIMEOUT);
+        mReadTimeout = metaData.getInt("com.mixpanel.android.MPConfig.ReadTimeout", HttpService.DEFAULT_READ_TIMEOUT);
+        mUploadDeadline = metaData.getInt("com.mixpanel.android.MPConfig.UploadDeadline", 0);
+        mIdempotentUploads = metaData.getBoolean("com.mixpanel.android.MPConfig.IdempotentUploads", false);
 
         Object dataExpirationMetaData = metaData.get("com.mixpanel.android.MPConfig.DataExpiration");
         long dataExpirationLong = 1000 * 60 * 60 * 24 * 5; // 5 days default
@@ -263,6 +413,137 @@ public class MPConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Milliseconds to hold queued records before writing them to the database in one transaction. Zero or less disables coalescing.
+    public int getInsertCoalescingWindow() {
+        return mInsertCoalescingWindow;
+    }
+
+    // Whether the local database connection stays open (in WAL mode) between operations.
+    public boolean getKeepDatabaseOpen() {
+        return mKeepDatabaseOpen;
+    }
+
+    // Max records per upload request. Must be below the limit the service will accept.
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    // Approximate max bytes of JSON per upload request. A single larger record is still sent alone.
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    // Whether serialized records are parsed back before they are queued.
+    public boolean getValidateRecords() {
+        return mValidateRecords;
+    }
+
+    // Whether uploads are sent gzip compressed.
+    public boolean getCompressUploads() {
+        return mCompressUploads;
+    }
+
+    // Max upload requests sent at once while draining a queue. Batches sent after a failed one are
+    // resent, so without idempotent uploads a failure can duplicate messages.
+    public int getMaxInFlightBatches() {
+        return mMaxInFlightBatches;
+    }
+
+    // Whether queues are uploaded concurrently on upload threads instead of on the worker thread.
+    public boolean getFlushOnUploadThreads() {
+        return mFlushOnUploadThreads;
+    }
+
+    // Capacity of the lock-free queue of tracked events, or 0 if events go through the worker's message queue.
+    public int getEventQueueCapacity() {
+        return mEventQueueCapacity;
+    }
+
+    // What track() does when the event queue is full.
+    /* package */ EventQueue.OverflowPolicy getEventQueueOverflowPolicy() {
+        return mEventQueueOverflowPolicy;
+    }
+
+    // Max time track() waits for room in a full event queue under the BLOCK policy.
+    public int getEventQueueBlockTimeout() {
+        return mEventQueueBlockTimeout;
+    }
+
+    // Threads that prepare tracked events before they are stored, or 0 to prepare them on the worker thread.
+    public int getEnrichmentThreads() {
+        return mEnrichmentThreads;
+    }
+
+    // Max age of the cached network and Bluetooth default event properties, or 0 to look them up for every event.
+    public int getDefaultPropertiesCacheDuration() {
+        return mDefaultPropertiesCacheDuration;
+    }
+
+    // How long changes to stored state are collected before they are written, or 0 to write every change right away.
+    public int getPersistenceWriteWindow() {
+        return mPersistenceWriteWindow;
+    }
+
+    // Whether identities and super properties are kept in a BinaryPreferences file rather than SharedPreferences.
+    public boolean getUseBinaryIdentityStorage() {
+        return mUseBinaryIdentityStorage;
+    }
+
+    // Whether new MixpanelAPI instances load their state in the background, holding events tracked meanwhile.
+    public boolean getDeferInitialization() {
+        return mDeferInitialization;
+    }
+
+    // Whether flushes follow connectivity changes, rather than running on a timer whether or not the device is online.
+    public boolean getNetworkAwareFlush() {
+        return mNetworkAwareFlush;
+    }
+
+    // Queues longer than this wait for an unmetered network, or 0 to upload queues over any network.
+    public int getUnmeteredBacklogThreshold() {
+        return mUnmeteredBacklogThreshold;
+    }
+
+    // The longest a queue waits for an unmetered network before it is uploaded over a metered one.
+    public int getUnmeteredBacklogMaxDelay() {
+        return mUnmeteredBacklogMaxDelay;
+    }
+
+    // Whether flush timing and batch sizes adapt to measured traffic, instead of following FlushInterval and BulkUploadLimit.
+    public boolean getAdaptiveFlush() {
+        return mAdaptiveFlush;
+    }
+
+    // The shortest flush interval AdaptiveFlush may choose.
+    public int getAdaptiveFlushMinInterval() {
+        return mAdaptiveFlushMinInterval;
+    }
+
+    // The longest flush interval AdaptiveFlush may choose.
+    public int getAdaptiveFlushMaxInterval() {
+        return mAdaptiveFlushMaxInterval;
+    }
+
+    // How long to wait for a connection to Mixpanel.
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    // How long to wait for each read of a response from Mixpanel.
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    // How long an upload request may take in all, or 0 for no limit beyond the connect and read timeouts.
+    public int getUploadDeadline() {
+        return mUploadDeadline;
+    }
+
+    // Whether batches are recorded until confirmed, and resent unchanged with an idempotency key.
+    public boolean getIdempotentUploads() {
+        return mIdempotentUploads;
+    }
+
     public boolean getDisableAppOpenEvent() {
         return mDisableAppOpenEvent;
     }
@@ -392,6 +673,21 @@ public class MPConfig {
         return mOfflineMode;
     }
 
+    // This method is thread safe
+    public synchronized UploadStatsListener getUploadStatsListener() {
+        return mUploadStatsListener;
+    }
+
+    // This method is thread safe
+    public synchronized PersistenceStatsListener getPersistenceStatsListener() {
+        return mPersistenceStatsListener;
+    }
+
+    // This method is thread safe
+    public synchronized FlushStatsListener getFlushStatsListener() {
+        return mFlushStatsListener;
+    }
+
     ///////////////////////////////////////////////
 
     // Package access for testing only- do not call directly in library code
@@ -416,6 +712,32 @@ public class MPConfig {
                 "    FlushInterval " + getFlushInterval() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                "    InsertCoalescingWindow " + getInsertCoalescingWindow() + "\n" +
+                "    KeepDatabaseOpen " + getKeepDatabaseOpen() + "\n" +
+                "    MaxBatchSize " + getMaxBatchSize() + "\n" +
+                "    MaxBatchBytes " + getMaxBatchBytes() + "\n" +
+                "    ValidateRecords " + getValidateRecords() + "\n" +
+                "    CompressUploads " + getCompressUploads() + "\n" +
+                "    MaxInFlightBatches " + getMaxInFlightBatches() + "\n" +
+                "    FlushOnUploadThreads " + getFlushOnUploadThreads() + "\n" +
+                "    EventQueueCapacity " + getEventQueueCapacity() + "\n" +
+                "    EventQueueOverflowPolicy " + getEventQueueOverflowPolicy() + "\n" +
+                "    EventQueueBlockTimeout " + getEventQueueBlockTimeout() + "\n" +
+                "    EnrichmentThreads " + getEnrichmentThreads() + "\n" +
+                "    DefaultPropertiesCacheDuration " + getDefaultPropertiesCacheDuration() + "\n" +
+                "    PersistenceWriteWindow " + getPersistenceWriteWindow() + "\n" +
+                "    UseBinaryIdentityStorage " + getUseBinaryIdentityStorage() + "\n" +
+                "    DeferInitialization " + getDeferInitialization() + "\n" +
+                "    NetworkAwareFlush " + getNetworkAwareFlush() + "\n" +
+                "    UnmeteredBacklogThreshold " + getUnmeteredBacklogThreshold() + "\n" +
+                "    UnmeteredBacklogMaxDelay " + getUnmeteredBacklogMaxDelay() + "\n" +
+                "    AdaptiveFlush " + getAdaptiveFlush() + "\n" +
+                "    AdaptiveFlushMinInterval " + getAdaptiveFlushMinInterval() + "\n" +
+                "    AdaptiveFlushMaxInterval " + getAdaptiveFlushMaxInterval() + "\n" +
+                "    ConnectTimeout " + getConnectTimeout() + "\n" +
+                "    ReadTimeout " + getReadTimeout() + "\n" +
+                "    UploadDeadline " + getUploadDeadline() + "\n" +
+                "    IdempotentUploads " + getIdempotentUploads() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
                 "    EventsEndpoint " + getEventsEndpoint() + "\n" +
@@ -433,6 +755,32 @@ public class MPConfig {
     private final boolean mFlushOnBackground;
     private final long mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mInsertCoalescingWindow;
+    private final boolean mKeepDatabaseOpen;
+    private final int mMaxBatchSize;
+    private final int mMaxBatchBytes;
+    private final boolean mValidateRecords;
+    private final boolean mCompressUploads;
+    private final int mMaxInFlightBatches;
+    private final boolean mFlushOnUploadThreads;
+    private final int mEventQueueCapacity;
+    private final EventQueue.OverflowPolicy mEventQueueOverflowPolicy;
+    private final int mEventQueueBlockTimeout;
+    private final int mEnrichmentThreads;
+    private final int mDefaultPropertiesCacheDuration;
+    private final int mPersistenceWriteWindow;
+    private final boolean mUseBinaryIdentityStorage;
+    private final boolean mDeferInitialization;
+    private final boolean mNetworkAwareFlush;
+    private final int mUnmeteredBacklogThreshold;
+    private final int mUnmeteredBacklogMaxDelay;
+    private final boolean mAdaptiveFlush;
+    private final int mAdaptiveFlushMinInterval;
+    private final int mAdaptiveFlushMaxInterval;
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final int mUploadDeadline;
+    private final boolean mIdempotentUploads;
     private final boolean mDisableDecideChecker;
     private final boolean mDisableAppOpenEvent;
     private final boolean mDisableExceptionHandler;
@@ -449,6 +797,9 @@ public class MPConfig {
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
     private OfflineMode mOfflineMode;
+    private UploadStatsListener mUploadStatsListener;
+    private PersistenceStatsListener mPersistenceStatsListener;
+    private FlushStatsListener mFlushStatsListener;
 
     private static MPConfig sInstance;
     private static final Object sInstanceLock = new Object();
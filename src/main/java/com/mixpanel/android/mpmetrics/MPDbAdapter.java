@@ -2,8 +2,11 @@ package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -13,17 +16,28 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
 import com.mixpanel.android.util.MPLog;
 
 /**
  * SQLite database adapter for MixpanelAPI.
  *
- * <p>Not thread-safe. Instances of this class should only be used
- * by a single thread.
+ * <p>Thread-safe. The methods that read or write the database are synchronized
+ * on the adapter, so the Mixpanel worker thread and the flush threads can share
+ * one instance. Each call is atomic on its own; a caller that needs several calls
+ * to happen together holds the adapter's lock around them.
+ *
+ * <p>AnalyticsMessages does this on its flush threads: it locks the adapter and
+ * checks that the worker hasn't been killed (mDead) before each generateDataString,
+ * generateLedgerBatch and cleanupEvents call, so that a flush finishing after a hard
+ * kill can't recreate the database that deleteDB removed.
  *
  */
 /* package */ class MPDbAdapter {
@@ -51,6 +65,11 @@ import com.mixpanel.android.util.MPLog;
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_BATCH_ID = "batch_id";
+    public static final String KEY_TABLE_NAME = "table_name";
+    public static final String KEY_AFTER_ID = "after_id";
+    public static final String KEY_LAST_ID = "last_id";
+    public static final String KEY_ROWS = "rows";
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
@@ -60,8 +79,8 @@ import com.mixpanel.android.util.MPLog;
     private static final int MIN_DB_VERSION = 4;
 
     // If you increment DATABASE_VERSION, don't forget to define migration
-    private static final int DATABASE_VERSION = 7; // current database version
-    private static final int MAX_DB_VERSION = 7; // Max database version onUpdate can migrate to.
+    private static final int DATABASE_VERSION = 9; // current database version
+    private static final int MAX_DB_VERSION = 9; // Max database version onUpdate can migrate to.
 
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -87,6 +106,24 @@ import com.mixpanel.android.util.MPLog;
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
                     KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+    // The batch ledger: uploads that have been assembled but not yet confirmed, see generateLedgerBatch().
+    // A batch covers the rows of its table and token with after_id < _id <= last_id, automatic
+    // ones too if automatic_data is set, and data is the exact JSON that was sent for them.
+    private static final String BATCHES_TABLE = "batches";
+    private static final String CREATE_BATCHES_TABLE =
+            "CREATE TABLE " + BATCHES_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_BATCH_ID + " STRING NOT NULL, " +
+                    KEY_TABLE_NAME + " STRING NOT NULL, " +
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
+                    KEY_AFTER_ID + " INTEGER NOT NULL, " +
+                    KEY_LAST_ID + " INTEGER NOT NULL, " +
+                    KEY_ROWS + " INTEGER NOT NULL, " +
+                    KEY_DATA + " STRING NOT NULL, " +
+                    KEY_CREATED_AT + " INTEGER NOT NULL)";
+    private static final String BATCHES_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + BATCHES_TABLE + "_range_idx ON " + BATCHES_TABLE +
+                    " (" + KEY_TABLE_NAME + ", " + KEY_TOKEN + ", " + KEY_LAST_ID + ");";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -100,22 +137,110 @@ import com.mixpanel.android.util.MPLog;
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
                     " (" + KEY_CREATED_AT + ");";
 
+    // Queue reads and cleanups filter on token (and often automatic_data) and walk rows in _id
+    // order, so both shapes get an index that ends in _id and turns them into range scans.
+    // Index names are global to the database, hence the table name prefix.
+    private static String tokenIndex(Table table) {
+        return "CREATE INDEX IF NOT EXISTS " + table.getName() + "_token_idx ON " + table.getName() +
+                " (" + KEY_TOKEN + ", _id);";
+    }
+
+    private static String tokenAutomaticIndex(Table table) {
+        return "CREATE INDEX IF NOT EXISTS " + table.getName() + "_token_automatic_idx ON " + table.getName() +
+                " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
+    }
+
+    // Hot path statements, compiled once per connection and reused with bound arguments.
+    private static final int STATEMENT_INSERT = 0;
+    private static final int STATEMENT_DELETE_RECORDS_UP_TO = 1; // regular records only
+    private static final int STATEMENT_DELETE_ALL_UP_TO = 2; // regular and automatic records
+    private static final String[][] STATEMENT_SQL = new String[3][Table.values().length];
+
+    static {
+        for (final Table table : Table.values()) {
+            final String name = table.getName();
+            final int t = table.ordinal();
+            STATEMENT_SQL[STATEMENT_INSERT][t] = "INSERT INTO " + name + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " +
+                    KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ") VALUES (?, ?, ?, ?)";
+            STATEMENT_SQL[STATEMENT_DELETE_RECORDS_UP_TO][t] = "DELETE FROM " + name + " WHERE _id <= ? AND " + KEY_TOKEN + " = ? AND " +
+                    KEY_AUTOMATIC_DATA + " = 0";
+            STATEMENT_SQL[STATEMENT_DELETE_ALL_UP_TO][t] = "DELETE FROM " + name + " WHERE _id <= ? AND " + KEY_TOKEN + " = ?";
+        }
+    }
+
+    // Upload batch queries, [table][0] for regular records only and [table][1] including automatic ones.
+    private static String[][] selectBatchSql(int maxRows) {
+        final String[][] ret = new String[Table.values().length][2];
+        for (final Table table : Table.values()) {
+            final String name = table.getName();
+            final int t = table.ordinal();
+            ret[t][0] = "SELECT _id, " + KEY_DATA + " FROM " + name + " WHERE " + KEY_TOKEN + " = ? AND _id > ? AND " +
+                    KEY_AUTOMATIC_DATA + " = 0 ORDER BY _id ASC LIMIT " + maxRows;
+            ret[t][1] = "SELECT _id, " + KEY_DATA + " FROM " + name + " WHERE " + KEY_TOKEN + " = ? AND _id > ? ORDER BY _id ASC LIMIT " + maxRows;
+        }
+        return ret;
+    }
+
+    // Pragmas applied to long-lived connections. synchronous=NORMAL is durable across app
+    // crashes in WAL mode and skips the fsync on every commit; the page cache is sized so
+    // the head of each queue and its indexes stay resident between flushes.
+    private static final String PRAGMA_SYNCHRONOUS = "PRAGMA synchronous = NORMAL";
+    private static final String PRAGMA_CACHE_SIZE = "PRAGMA cache_size = 500";
+
     private final MPDatabaseHelper mDb;
+    private final boolean mKeepDatabaseOpen;
+    private final int mMaxBatchBytes;
+    private final boolean mValidateRecords;
+    private final String[][] mSelectBatchSql;
+
+    // Guarded by this, see statement()
+    private final SQLiteStatement[][] mStatements = new SQLiteStatement[STATEMENT_SQL.length][Table.values().length];
+    private SQLiteDatabase mStatementsDb;
+
+    // Batch size instrumentation, see generateDataString()
+    private long mBatchCount = 0;
+    private long mBatchRows = 0;
+    private long mBatchBytes = 0;
+
+    // Queued rows per table and token: [0] counts regular records, [1] automatic ones.
+    private final Map<Table, Map<String, int[]>> mQueueDepths = new HashMap<Table, Map<String, int[]>>();
+    private boolean mQueueDepthsLoaded = false; // guarded by mQueueDepths
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
-        MPDatabaseHelper(Context context, String dbName) {
+        MPDatabaseHelper(Context context, String dbName, MPConfig config) {
             super(context, dbName, null, DATABASE_VERSION);
             mDatabaseFile = context.getDatabasePath(dbName);
-            mConfig = MPConfig.getInstance(context);
+            mConfig = config;
             mContext = context;
+
+            if (mConfig.getKeepDatabaseOpen() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
         }
 
         /**
-         * Completely deletes the DB file from the file system.
+         * Completely deletes the DB file, and any journal files, from the file system.
          */
         public void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            for (final String suffix : JOURNAL_SUFFIXES) {
+                new File(mDatabaseFile.getPath() + suffix).delete();
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            if (mConfig.getKeepDatabaseOpen() && !db.isReadOnly()) {
+                try {
+                    db.execSQL(PRAGMA_SYNCHRONOUS);
+                    db.execSQL(PRAGMA_CACHE_SIZE);
+                } catch (final SQLiteException e) {
+                    MPLog.w(LOGTAG, "Could not tune Mixpanel database connection, using SQLite defaults", e);
+                }
+            }
         }
 
         @Override
@@ -130,6 +255,9 @@ import com.mixpanel.android.util.MPLog;
             db.execSQL(PEOPLE_TIME_INDEX);
             db.execSQL(GROUPS_TIME_INDEX);
             db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+            createTokenIndexes(db);
+            db.execSQL(CREATE_BATCHES_TABLE);
+            db.execSQL(BATCHES_INDEX);
         }
 
         @Override
@@ -141,21 +269,37 @@ import com.mixpanel.android.util.MPLog;
                     migrateTableFrom4To5(db);
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 5) {
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 6) {
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                }
+
+                if (oldVersion == 7) {
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                }
+
+                if (oldVersion == 8) {
+                    migrateTableFrom8To9(db);
                 }
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.GROUPS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.ANONYMOUS_PEOPLE.getName());
+                db.execSQL("DROP TABLE IF EXISTS " + BATCHES_TABLE);
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(CREATE_GROUPS_TABLE);
@@ -164,6 +308,9 @@ import com.mixpanel.android.util.MPLog;
                 db.execSQL(PEOPLE_TIME_INDEX);
                 db.execSQL(GROUPS_TIME_INDEX);
                 db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+                createTokenIndexes(db);
+                db.execSQL(CREATE_BATCHES_TABLE);
+                db.execSQL(BATCHES_INDEX);
             }
         }
 
@@ -187,7 +334,7 @@ import com.mixpanel.android.util.MPLog;
                     final JSONObject j = new JSONObject(eventsCursor.getString(eventsCursor.getColumnIndex(KEY_DATA)));
                     String token = j.getJSONObject("properties").getString("token");
                     rowId = eventsCursor.getInt(eventsCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.EVENTS.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
+                    db.execSQL("UPDATE " + Table.EVENTS.getName() + " SET " + KEY_TOKEN + " = ? WHERE _id = ?", new Object[] {token, rowId});
                 } catch (final JSONException e) {
                     db.delete(Table.EVENTS.getName(), "_id = " + rowId, null);
                 }
@@ -200,7 +347,7 @@ import com.mixpanel.android.util.MPLog;
                     final JSONObject j = new JSONObject(peopleCursor.getString(peopleCursor.getColumnIndex(KEY_DATA)));
                     String token = j.getString("$token");
                     rowId = peopleCursor.getInt(peopleCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.PEOPLE.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
+                    db.execSQL("UPDATE " + Table.PEOPLE.getName() + " SET " + KEY_TOKEN + " = ? WHERE _id = ?", new Object[] {token, rowId});
                 } catch (final JSONException e) {
                     db.delete(Table.PEOPLE.getName(), "_id = " + rowId, null);
                 }
@@ -266,9 +413,27 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
+        private void migrateTableFrom7To8(SQLiteDatabase db) {
+            createTokenIndexes(db);
+        }
+
+        private void migrateTableFrom8To9(SQLiteDatabase db) {
+            db.execSQL(CREATE_BATCHES_TABLE);
+            db.execSQL(BATCHES_INDEX);
+        }
+
+        private void createTokenIndexes(SQLiteDatabase db) {
+            for (final Table table : Table.values()) {
+                db.execSQL(tokenIndex(table));
+                db.execSQL(tokenAutomaticIndex(table));
+            }
+        }
+
         private final File mDatabaseFile;
         private final MPConfig mConfig;
         private final Context mContext;
+
+        private static final String[] JOURNAL_SUFFIXES = {"-journal", "-wal", "-shm"};
     }
 
     public MPDbAdapter(Context context) {
@@ -276,7 +441,15 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public MPDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, MPConfig.getInstance(context));
+    }
+
+    /* package */ MPDbAdapter(Context context, String dbName, MPConfig config) {
+        mDb = new MPDatabaseHelper(context, dbName, config);
+        mKeepDatabaseOpen = config.getKeepDatabaseOpen();
+        mMaxBatchBytes = config.getMaxBatchBytes();
+        mValidateRecords = config.getValidateRecords();
+        mSelectBatchSql = selectBatchSql(Math.max(1, config.getMaxBatchSize()));
     }
 
     public static MPDbAdapter getInstance(Context context) {
@@ -303,31 +476,25 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+    public synchronized int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
         // we are aware of the race condition here, but what can we do..?
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
         }
 
-        final String tableName = table.getName();
-
-        Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
+            loadQueueDepths(db);
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
+            final SQLiteStatement insert = statement(db, STATEMENT_INSERT, table);
+            if (executeInsert(insert, j.toString(), System.currentTimeMillis(), isAutomaticRecord, token) != -1) {
+                adjustQueueDepth(table, token, isAutomaticRecord, 1);
+            }
 
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = queueDepth(table, token, true);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not add Mixpanel data to table");
 
@@ -335,18 +502,66 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
+            deleteDB();
         } catch (final OutOfMemoryError e) {
             MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to table");
         } finally {
-            if (c != null) {
-                c.close();
+            releaseDatabase();
+        }
+        return count;
+    }
+
+    /**
+     * Adds a list of JSON records to the SQLiteDatabase in a single transaction. All records
+     * share the same destination table, project token and automatic flag.
+     * @param records the JSON records to store, in queue order
+     * @param token token of the project
+     * @param table the table to insert into, one of "events", "people", "groups" or "anonymous_people"
+     * @param isAutomaticRecord mark the records as automatic events or not
+     * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    public synchronized int addJSONBatch(List<JSONObject> records, String token, Table table, boolean isAutomaticRecord) {
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = DB_UPDATE_ERROR;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            loadQueueDepths(db);
+            final SQLiteStatement insert = statement(db, STATEMENT_INSERT, table);
+            final long now = System.currentTimeMillis();
+
+            int inserted = 0;
+            db.beginTransaction();
+            try {
+                for (final JSONObject j : records) {
+                    if (executeInsert(insert, j.toString(), now, isAutomaticRecord, token) != -1) {
+                        inserted++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            mDb.close();
+            adjustQueueDepth(table, token, isAutomaticRecord, inserted);
+
+            count = queueDepth(table, token, true);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not add Mixpanel data batch to table");
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            deleteDB();
+        } catch (final OutOfMemoryError e) {
+            MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data batch to table");
+        } finally {
+            releaseDatabase();
         }
         return count;
     }
@@ -358,7 +573,7 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows copied (anonymous updates), or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    /* package */ int pushAnonymousUpdatesToPeopleDb(String token, String distinctId) {
+    /* package */ synchronized int pushAnonymousUpdatesToPeopleDb(String token, String distinctId) {
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
@@ -368,24 +583,24 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
+            loadQueueDepths(db);
+            final SQLiteStatement insert = statement(db, STATEMENT_INSERT, Table.PEOPLE);
+            final String allAnonymousQuery = "SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE " + KEY_TOKEN + " = ?";
 
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
+            selectCursor = db.rawQuery(allAnonymousQuery, new String[] {token});
             db.beginTransaction();
             try {
                 while (selectCursor.moveToNext()) {
                     try {
-                        ContentValues values = new ContentValues();
-                        values.put(KEY_CREATED_AT, selectCursor.getLong(selectCursor.getColumnIndex(KEY_CREATED_AT)));
-                        values.put(KEY_AUTOMATIC_DATA, selectCursor.getInt(selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA)));
-                        values.put(KEY_TOKEN, selectCursor.getString(selectCursor.getColumnIndex(KEY_TOKEN)));
-
                         JSONObject updatedData = new JSONObject(selectCursor.getString(selectCursor.getColumnIndex(KEY_DATA)));
                         updatedData.put("$distinct_id", distinctId);
-                        values.put(KEY_DATA, updatedData.toString());
-                        db.insert(Table.PEOPLE.getName(), null, values);
-                        int rowId = selectCursor.getInt(selectCursor.getColumnIndex("_id"));
-                        db.delete(Table.ANONYMOUS_PEOPLE.getName(), "_id = " + rowId, null);
+                        executeInsert(insert,
+                                updatedData.toString(),
+                                selectCursor.getLong(selectCursor.getColumnIndex(KEY_CREATED_AT)),
+                                selectCursor.getInt(selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA)) != 0,
+                                selectCursor.getString(selectCursor.getColumnIndex(KEY_TOKEN)));
+                        String rowId = selectCursor.getString(selectCursor.getColumnIndex("_id"));
+                        db.delete(Table.ANONYMOUS_PEOPLE.getName(), "_id = ?", new String[] {rowId});
                         count++;
                     } catch (final JSONException e) {
                         // Ignore this object
@@ -395,6 +610,8 @@ import com.mixpanel.android.util.MPLog;
             } finally {
                 db.endTransaction();
             }
+            reloadQueueDepths(db, Table.ANONYMOUS_PEOPLE);
+            reloadQueueDepths(db, Table.PEOPLE);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing database.", e);
 
@@ -406,12 +623,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -424,7 +641,7 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows updated , or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    /* package */ int rewriteEventDataWithProperties(Map<String, String> properties, String token) {
+    /* package */ synchronized int rewriteEventDataWithProperties(Map<String, String> properties, String token) {
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
@@ -434,9 +651,9 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.EVENTS.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
+            final String allEventsQuery = "SELECT * FROM " + Table.EVENTS.getName() + " WHERE " + KEY_TOKEN + " = ?";
 
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
+            selectCursor = db.rawQuery(allEventsQuery, new String[] {token});
             db.beginTransaction();
             try {
                 while (selectCursor.moveToNext()) {
@@ -452,13 +669,15 @@ import com.mixpanel.android.util.MPLog;
                         updatedData.put("properties", existingProps);
                         values.put(KEY_DATA, updatedData.toString());
 
-                        int rowId = selectCursor.getInt(selectCursor.getColumnIndex("_id"));
-                        db.update(Table.EVENTS.getName(), values, "_id = " + rowId, null);
+                        String rowId = selectCursor.getString(selectCursor.getColumnIndex("_id"));
+                        db.update(Table.EVENTS.getName(), values, "_id = ?", new String[] {rowId});
                         count++;
                     } catch (final JSONException e) {
                         // Ignore this object
                     }
                 }
+                // Recorded batches hold the old data, so they are assembled again
+                forgetBatches(db, Table.EVENTS, token, false);
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -474,12 +693,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -491,17 +710,28 @@ import com.mixpanel.android.util.MPLog;
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      * @param includeAutomaticEvents whether or not automatic events should be included in the cleanup
      */
-    public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
+    public synchronized void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
-
-            if (!includeAutomaticEvents) {
-                deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
+            loadQueueDepths(db);
+            final long lastId = Long.parseLong(last_id);
+
+            // Regular records go first so the queue depth counters know which bucket
+            // every deleted row came from.
+            final SQLiteStatement deleteRecords = statement(db, STATEMENT_DELETE_RECORDS_UP_TO, table);
+            deleteRecords.bindLong(1, lastId);
+            deleteRecords.bindString(2, token);
+            adjustQueueDepth(table, token, false, -deleteRecords.executeUpdateDelete());
+            if (includeAutomaticEvents) {
+                final SQLiteStatement deleteAll = statement(db, STATEMENT_DELETE_ALL_UP_TO, table);
+                deleteAll.bindLong(1, lastId);
+                deleteAll.bindString(2, token);
+                adjustQueueDepth(table, token, true, -deleteAll.executeUpdateDelete());
             }
-            db.delete(tableName, deleteQuery.toString(), null);
+            db.delete(BATCHES_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ? AND " + KEY_LAST_ID + " <= ?",
+                    new String[] {tableName, token, Long.toString(lastId)});
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -509,12 +739,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } catch (final Exception e) {
             MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mixpanel records from " + tableName + ".Re-initializing database.", e);
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -523,12 +753,16 @@ import com.mixpanel.android.util.MPLog;
      * @param time the unix epoch in milliseconds to remove events before
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      */
-    public void cleanupEvents(long time, Table table) {
+    public synchronized void cleanupEvents(long time, Table table) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            loadQueueDepths(db);
+            if (db.delete(tableName, KEY_CREATED_AT + " <= ?", new String[] {Long.toString(time)}) > 0) {
+                reloadQueueDepths(db, table);
+                db.delete(BATCHES_TABLE, KEY_TABLE_NAME + " = ?", new String[] {tableName});
+            }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -536,9 +770,9 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -547,12 +781,14 @@ import com.mixpanel.android.util.MPLog;
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      * @param token token of the project to remove events from
      */
-    public void cleanupAllEvents(Table table, String token) {
+    public synchronized void cleanupAllEvents(Table table, String token) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_TOKEN + " = '" + token + "'", null);
+            db.delete(tableName, KEY_TOKEN + " = ?", new String[] {token});
+            clearQueueDepth(table, token, false);
+            forgetBatches(db, table, token, false);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -560,9 +796,9 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -581,7 +817,9 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = ?", new String[] {token});
+            clearQueueDepth(table, token, true);
+            forgetBatches(db, table, token, true);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -589,20 +827,222 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
-    public void deleteDB() {
+    public synchronized void deleteDB() {
+        closeStatements();
         mDb.deleteDatabase();
+        synchronized (mQueueDepths) {
+            mQueueDepths.clear();
+            mQueueDepthsLoaded = true;
+        }
+    }
+
+    /**
+     * Returns the number of records waiting to be sent, as tracked by in-memory counters
+     * that are seeded from the database once and kept up to date by every write.
+     * Safe to call from any thread.
+     *
+     * @param table the table to count records in
+     * @param token the token of the project
+     * @param includeAutomaticRecords whether or not automatic records should be counted
+     * @return the number of queued records
+     */
+    public synchronized int getQueueDepth(Table table, String token, boolean includeAutomaticRecords) {
+        try {
+            loadQueueDepths(mDb.getReadableDatabase());
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel records in " + table.getName() + ".", e);
+            return 0;
+        } finally {
+            releaseDatabase();
+        }
+        return queueDepth(table, token, includeAutomaticRecords);
+    }
+
+    // Seeds the queue depth counters, once. Must be called before the first write.
+    private void loadQueueDepths(SQLiteDatabase db) {
+        synchronized (mQueueDepths) {
+            if (mQueueDepthsLoaded) {
+                return;
+            }
+            for (final Table table : Table.values()) {
+                reloadQueueDepths(db, table);
+            }
+            mQueueDepthsLoaded = true;
+        }
+    }
+
+    private void reloadQueueDepths(SQLiteDatabase db, Table table) {
+        final Map<String, int[]> depths = new HashMap<String, int[]>();
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", COUNT(*) FROM " + table.getName() +
+                    " GROUP BY " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA, null);
+            while (c.moveToNext()) {
+                final String token = c.getString(0);
+                int[] tokenDepths = depths.get(token);
+                if (null == tokenDepths) {
+                    tokenDepths = new int[2];
+                    depths.put(token, tokenDepths);
+                }
+                tokenDepths[c.getInt(1) == 0 ? 0 : 1] += c.getInt(2);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        synchronized (mQueueDepths) {
+            mQueueDepths.put(table, depths);
+        }
+    }
+
+    private void adjustQueueDepth(Table table, String token, boolean isAutomaticRecord, int delta) {
+        synchronized (mQueueDepths) {
+            Map<String, int[]> depths = mQueueDepths.get(table);
+            if (null == depths) {
+                depths = new HashMap<String, int[]>();
+                mQueueDepths.put(table, depths);
+            }
+            int[] tokenDepths = depths.get(token);
+            if (null == tokenDepths) {
+                tokenDepths = new int[2];
+                depths.put(token, tokenDepths);
+            }
+            final int bucket = isAutomaticRecord ? 1 : 0;
+            tokenDepths[bucket] = Math.max(0, tokenDepths[bucket] + delta);
+        }
+    }
+
+    private void clearQueueDepth(Table table, String token, boolean automaticRecordsOnly) {
+        synchronized (mQueueDepths) {
+            final Map<String, int[]> depths = mQueueDepths.get(table);
+            if (null == depths) {
+                return;
+            }
+            if (automaticRecordsOnly) {
+                final int[] tokenDepths = depths.get(token);
+                if (null != tokenDepths) {
+                    tokenDepths[1] = 0;
+                }
+            } else {
+                depths.remove(token);
+            }
+        }
+    }
+
+    private int queueDepth(Table table, String token, boolean includeAutomaticRecords) {
+        synchronized (mQueueDepths) {
+            final Map<String, int[]> depths = mQueueDepths.get(table);
+            final int[] tokenDepths = null == depths ? null : depths.get(token);
+            if (null == tokenDepths) {
+                return 0;
+            }
+            return includeAutomaticRecords ? tokenDepths[0] + tokenDepths[1] : tokenDepths[0];
+        }
+    }
+
+    /**
+     * Closes the database connection. With MPConfig.KeepDatabaseOpen the connection otherwise
+     * stays open between operations; it will be reopened by the next read or write.
+     */
+    public synchronized void closeDatabase() {
+        closeStatements();
+        mDb.close();
+    }
+
+    // Called at the end of every operation.
+    private void releaseDatabase() {
+        if (!mKeepDatabaseOpen) {
+            closeStatements();
+            mDb.close();
+        }
+    }
+
+    // Stored records are sent as-is by generateDataString, so malformed ones have to be kept out of
+    // the queue. JSONObject.toString() returns null when a value can't be serialized; with
+    // MPConfig.getValidateRecords() the text is also parsed back before it is accepted.
+    private boolean isValidRecord(String data) {
+        if (null == data) {
+            return false;
+        }
+        if (mValidateRecords) {
+            try {
+                new JSONObject(data);
+            } catch (final JSONException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the compiled statement of the given kind for the table, compiling it on first use.
+    // Compiled statements belong to a connection, so they are dropped when the connection changes.
+    private SQLiteStatement statement(SQLiteDatabase db, int kind, Table table) {
+        if (db != mStatementsDb) {
+            closeStatements();
+            mStatementsDb = db;
+        }
+        SQLiteStatement ret = mStatements[kind][table.ordinal()];
+        if (null == ret) {
+            ret = db.compileStatement(STATEMENT_SQL[kind][table.ordinal()]);
+            mStatements[kind][table.ordinal()] = ret;
+        }
+        return ret;
+    }
+
+    // Statements hold a reference to their connection, and must be closed before it can be.
+    private void closeStatements() {
+        for (final SQLiteStatement[] statements : mStatements) {
+            for (int i = 0; i < statements.length; i++) {
+                if (null != statements[i]) {
+                    statements[i].close();
+                    statements[i] = null;
+                }
+            }
+        }
+        mStatementsDb = null;
+    }
+
+    // Same contract as SQLiteDatabase.insert: returns the new row id, or -1 if a constraint failed
+    // or the record was rejected by isValidRecord().
+    private long executeInsert(SQLiteStatement insert, String data, long createdAt, boolean isAutomaticRecord, String token) {
+        if (!isValidRecord(data)) {
+            MPLog.e(LOGTAG, "Refusing to queue malformed Mixpanel record: " + data);
+            return -1;
+        }
+        insert.bindString(1, data);
+        insert.bindLong(2, createdAt);
+        insert.bindLong(3, isAutomaticRecord ? 1 : 0);
+        if (null == token) {
+            insert.bindNull(4);
+        } else {
+            insert.bindString(4, token);
+        }
+        try {
+            return insert.executeInsert();
+        } catch (final SQLiteConstraintException e) {
+            MPLog.e(LOGTAG, "Could not insert Mixpanel record", e);
+            return -1;
+        }
     }
 
     /**
      * Returns the data string to send to Mixpanel and the maximum ID of the row that
      * we're sending, so we know what rows to delete when a track request was successful.
      *
+     * Batches hold at most MPConfig.getMaxBatchSize() records, and stop before the JSON they
+     * contain exceeds MPConfig.getMaxBatchBytes(). A batch always holds at least one record.
+     *
+     * Records were validated when they were inserted, so the data string is built from their
+     * stored text without parsing them again.
+     *
      * @param table the table to read the JSON from, one of "events", "people", or "groups"
      * @param token the token of the project you want to retrieve the records for
      * @param includeAutomaticEvents whether or not it should include pre-track records
@@ -611,8 +1051,26 @@ import com.mixpanel.android.util.MPLog;
      * current number of events in the queue.
      */
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+        return generateDataString(table, token, includeAutomaticEvents, null);
+    }
+
+    /**
+     * Like generateDataString(Table, String, boolean), but only considers rows after afterId,
+     * so a batch can be assembled while the batches before it are still being sent.
+     *
+     * @param afterId the maximum ID returned for the previous batch, or null to start from the
+     * front of the queue
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId) {
+        return generateDataString(table, token, includeAutomaticEvents, afterId, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like generateDataString(Table, String, boolean, String), but the batch holds at most
+     * maxRows records even if MPConfig.getMaxBatchSize() allows more.
+     */
+    public synchronized String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRows) {
         Cursor c = null;
-        Cursor queueCountCursor = null;
         String data = null;
         String last_id = null;
         String queueCount = null;
@@ -620,36 +1078,43 @@ import com.mixpanel.android.util.MPLog;
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            if (!includeAutomaticEvents) {
-                rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
-                queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
-            }
-
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
-            c = db.rawQuery(rawDataQuery.toString(), null);
+            loadQueueDepths(db);
+            c = db.rawQuery(mSelectBatchSql[table.ordinal()][includeAutomaticEvents ? 1 : 0], new String[] {token, null == afterId ? "0" : afterId});
 
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
-            queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
+            queueCount = String.valueOf(queueDepth(table, token, includeAutomaticEvents));
 
-            final JSONArray arr = new JSONArray();
+            final StringBuilder arr = new StringBuilder();
+            int rows = 0;
+            int records = 0;
+            long bytes = 0;
 
+            arr.append('[');
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+                final String row = c.getString(1);
+                final int rowLength = null == row ? 0 : row.length();
+                // String length is close enough to the UTF-8 size for the mostly ASCII records we store
+                if (rows > 0 && (bytes + rowLength > mMaxBatchBytes || rows >= maxRows)) {
+                    break;
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+                last_id = c.getString(0);
+                rows++;
+                bytes += rowLength;
+                // Cheap guard against rows damaged on disk, which would spoil the whole batch
+                if (null == row || !row.startsWith("{") || !row.endsWith("}")) {
+                    MPLog.w(LOGTAG, "Skipping damaged record in " + tableName);
+                    continue;
                 }
+                if (records > 0) {
+                    arr.append(',');
+                }
+                arr.append(row);
+                records++;
             }
+            arr.append(']');
 
-            if (arr.length() > 0) {
+            if (records > 0) {
                 data = arr.toString();
+                recordBatch(table, rows, bytes);
             }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
@@ -661,13 +1126,10 @@ import com.mixpanel.android.util.MPLog;
             last_id = null;
             data = null;
         } finally {
-            mDb.close();
             if (c != null) {
                 c.close();
             }
-            if (queueCountCursor != null) {
-                queueCountCursor.close();
-            }
+            releaseDatabase();
         }
 
         if (last_id != null && data != null) {
@@ -677,6 +1139,204 @@ import com.mixpanel.android.util.MPLog;
         return null;
     }
 
+    /**
+     * Like generateDataString(Table, String, boolean, String, int), but records every batch in a
+     * ledger until cleanupEvents removes its rows. Asked for the same rows again, say to retry an
+     * upload that failed or timed out, it returns the recorded batch, with the same id and exactly
+     * the same data, instead of assembling a new one. The server can then recognize a batch it
+     * has already ingested. A recorded batch is returned as it is even if maxRows has shrunk since.
+     *
+     * @return String array containing the maximum ID, the data string, the current number of
+     * records in the queue and the batch id, or null if there is nothing to send. The batch id is
+     * null if the batch could not be recorded.
+     */
+    public synchronized String[] generateLedgerBatch(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRows) {
+        final String[] recorded = findLedgerBatch(table, token, includeAutomaticEvents, afterId);
+        if (null != recorded) {
+            return recorded;
+        }
+
+        final String[] batch = generateDataString(table, token, includeAutomaticEvents, afterId, maxRows);
+        if (null == batch) {
+            return null;
+        }
+        final String batchId = recordLedgerBatch(table, token, includeAutomaticEvents, afterId, batch[0], batch[1]);
+        return new String[] {batch[0], batch[1], batch[2], batchId};
+    }
+
+    /**
+     * Checks the batch ledger against the queue, and forgets recorded batches whose rows have
+     * changed since they were assembled, for instance because the process stopped between
+     * deleting the rows of a batch and forgetting it. Batches that still match are resent as
+     * recorded by generateLedgerBatch, so an upload that was cut off before its result was known
+     * isn't ingested twice. Call once, before the first upload.
+     *
+     * @return the number of recorded batches still waiting to be confirmed
+     */
+    public synchronized int reconcileBatches() {
+        Cursor c = null;
+        int pending = 0;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final List<String> stale = new ArrayList<String>();
+            c = db.rawQuery("SELECT _id, " + KEY_TABLE_NAME + ", " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_AFTER_ID + ", " +
+                    KEY_LAST_ID + ", " + KEY_ROWS + " FROM " + BATCHES_TABLE, null);
+            while (c.moveToNext()) {
+                final Table table = tableNamed(c.getString(1));
+                if (null == table || countRows(db, table, c.getString(2), c.getInt(3) != 0, c.getLong(4), c.getLong(5)) != c.getLong(6)) {
+                    stale.add(c.getString(0));
+                } else {
+                    pending++;
+                }
+            }
+            c.close();
+            c = null;
+
+            db.beginTransaction();
+            try {
+                for (final String id : stale) {
+                    db.delete(BATCHES_TABLE, "_id = ?", new String[] {id});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            MPLog.v(LOGTAG, "Batch ledger has " + pending + " unconfirmed batches, forgot " + stale.size() + " stale ones");
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not reconcile the Mixpanel batch ledger.", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
+        }
+        return pending;
+    }
+
+    // Returns the recorded batch that starts right after afterId, if it covers the same kind of
+    // records. Recorded batches from there on that were assembled differently are forgotten, so
+    // their rows are assembled again.
+    private String[] findLedgerBatch(Table table, String token, boolean includeAutomaticEvents, String afterId) {
+        final String after = null == afterId ? "0" : afterId;
+        Cursor c = null;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            loadQueueDepths(db);
+            c = db.rawQuery("SELECT " + KEY_BATCH_ID + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_AFTER_ID + ", " + KEY_LAST_ID + ", " + KEY_DATA +
+                    " FROM " + BATCHES_TABLE + " WHERE " + KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ? AND " + KEY_LAST_ID + " > ?" +
+                    " ORDER BY " + KEY_LAST_ID + " ASC LIMIT 1", new String[] {table.getName(), token, after});
+            if (!c.moveToFirst()) {
+                return null;
+            }
+
+            final long batchAfterId = c.getLong(2);
+            final boolean sameRecords = (c.getInt(1) != 0) == includeAutomaticEvents;
+            // From the front of the queue, the batch follows if everything before it has been sent
+            final boolean follows = null == afterId ?
+                    0 == countRows(db, table, token, includeAutomaticEvents, 0, batchAfterId) :
+                    batchAfterId == Long.parseLong(afterId);
+            if (sameRecords && follows) {
+                MPLog.v(LOGTAG, "Resending recorded " + table.getName() + " batch " + c.getString(0));
+                return new String[] {c.getString(3), c.getString(4), String.valueOf(queueDepth(table, token, includeAutomaticEvents)), c.getString(0)};
+            }
+
+            c.close();
+            c = null;
+            db.delete(BATCHES_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ? AND " + KEY_LAST_ID + " > ?",
+                    new String[] {table.getName(), token, after});
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read the Mixpanel batch ledger, assembling a new batch.", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
+        }
+        return null;
+    }
+
+    // Returns the id of the new batch, or null if it couldn't be recorded
+    private String recordLedgerBatch(Table table, String token, boolean includeAutomaticEvents, String afterId, String lastId, String data) {
+        final String batchId = UUID.randomUUID().toString();
+        final long after = null == afterId ? 0 : Long.parseLong(afterId);
+        final long last = Long.parseLong(lastId);
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final ContentValues cv = new ContentValues();
+            cv.put(KEY_BATCH_ID, batchId);
+            cv.put(KEY_TABLE_NAME, table.getName());
+            cv.put(KEY_TOKEN, token);
+            cv.put(KEY_AUTOMATIC_DATA, includeAutomaticEvents);
+            cv.put(KEY_AFTER_ID, after);
+            cv.put(KEY_LAST_ID, last);
+            cv.put(KEY_ROWS, countRows(db, table, token, includeAutomaticEvents, after, last));
+            cv.put(KEY_DATA, data);
+            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
+            if (db.insert(BATCHES_TABLE, null, cv) == -1) {
+                return null;
+            }
+            return batchId;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not record Mixpanel batch in the ledger, it will be sent without an id.", e);
+            return null;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    // Forgets the recorded batches of a table and token, or only those that include automatic records
+    private void forgetBatches(SQLiteDatabase db, Table table, String token, boolean automaticRecordsOnly) {
+        if (automaticRecordsOnly) {
+            db.delete(BATCHES_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = 1",
+                    new String[] {table.getName(), token});
+        } else {
+            db.delete(BATCHES_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ?", new String[] {table.getName(), token});
+        }
+    }
+
+    // Counts the queued rows a batch covering afterId < _id <= lastId would hold
+    private static long countRows(SQLiteDatabase db, Table table, String token, boolean includeAutomaticEvents, long afterId, long lastId) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table.getName() + " WHERE " + KEY_TOKEN + " = ? AND _id > ? AND _id <= ?" +
+                (includeAutomaticEvents ? "" : " AND " + KEY_AUTOMATIC_DATA + " = 0"),
+                new String[] {token, Long.toString(afterId), Long.toString(lastId)});
+    }
+
+    private static Table tableNamed(String name) {
+        for (final Table table : Table.values()) {
+            if (table.getName().equals(name)) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the average number of records in the batches returned by generateDataString,
+     * or zero if no batches have been assembled yet.
+     */
+    public synchronized float getAverageBatchRows() {
+        return mBatchCount == 0 ? 0 : (float) mBatchRows / mBatchCount;
+    }
+
+    /**
+     * Returns the average approximate size in bytes of the JSON in the batches returned by
+     * generateDataString, or zero if no batches have been assembled yet.
+     */
+    public synchronized float getAverageBatchBytes() {
+        return mBatchCount == 0 ? 0 : (float) mBatchBytes / mBatchCount;
+    }
+
+    private synchronized void recordBatch(Table table, int rows, long bytes) {
+        mBatchCount++;
+        mBatchRows += rows;
+        mBatchBytes += bytes;
+        MPLog.v(LOGTAG, "Assembled " + table.getName() + " batch of " + rows + " records (" + bytes + " bytes). Average batch is " +
+                getAverageBatchRows() + " records (" + getAverageBatchBytes() + " bytes).");
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
@@ -24,6 +24,7 @@ import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -33,7 +34,14 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -115,13 +123,50 @@ public class MixpanelAPI {
      * You shouldn't instantiate MixpanelAPI objects directly.
      * Use MixpanelAPI.getInstance to get an instance.
      */
-    MixpanelAPI(Context context, Future<SharedPreferences> referrerPreferences, String token, MPConfig config, boolean optOutTrackingDefault, JSONObject superProperties) {
+    MixpanelAPI(Context context, Future<SharedPreferences> referrerPreferences, String token, MPConfig config, final boolean optOutTrackingDefault, final JSONObject superProperties) {
         mContext = context;
         mToken = token;
         mPeople = new PeopleImpl();
         mGroups = new HashMap<String, GroupImpl>();
         mConfig = config;
 
+        mSessionMetadata = new SessionMetadata();
+        mMessages = getAnalyticsMessages();
+        mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
+        mEventTimings = new ConcurrentHashMap<String, Long>();
+        mConnectIntegrations = new ConnectIntegrations(this, mContext);
+        mDecideMessages = constructDecideUpdates(token, mConnectIntegrations);
+        mDeferredCalls = new ArrayList<Runnable>();
+
+        registerMixpanelActivityLifecycleCallbacks();
+
+        final Runnable initialization = new Runnable() {
+            @Override
+            public void run() {
+                initialize(optOutTrackingDefault, superProperties);
+            }
+        };
+        if (mConfig.getDeferInitialization()) {
+            getInitializer().execute(initialization);
+        } else {
+            initialization.run();
+        }
+    }
+
+    // Everything in construction that waits on preferences, the database or the PackageManager.
+    // Runs in the constructor, or on the initializer thread if com.mixpanel.android.MPConfig.DeferInitialization
+    // is set, and then runs the calls deferred while it was in progress.
+    private void initialize(boolean optOutTrackingDefault, JSONObject superProperties) {
+        mInitializingThread = Thread.currentThread();
+        try {
+            initializeState(optOutTrackingDefault, superProperties);
+        } finally {
+            finishInitialization();
+        }
+    }
+
+    private void initializeState(boolean optOutTrackingDefault, JSONObject superProperties) {
+        final String token = mToken;
         final Map<String, String> deviceInfo = new HashMap<String, String>();
         deviceInfo.put("$android_lib_version", MPConfig.VERSION);
         deviceInfo.put("$android_os", "Android");
@@ -139,10 +184,7 @@ public class MixpanelAPI {
         }
         mDeviceInfo = Collections.unmodifiableMap(deviceInfo);
 
-        mSessionMetadata = new SessionMetadata();
-        mMessages = getAnalyticsMessages();
-        mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
-        mEventTimings = mPersistentIdentity.getTimeEvents();
+        mEventTimings.putAll(mPersistentIdentity.getTimeEvents());
 
         if (optOutTrackingDefault && (hasOptedOutTracking() || !mPersistentIdentity.hasOptOutFlag(token))) {
             optOutTracking();
@@ -151,10 +193,6 @@ public class MixpanelAPI {
         if (superProperties != null) {
             registerSuperProperties(superProperties);
         }
-        mConnectIntegrations = new ConnectIntegrations(this, mContext);
-        mDecideMessages = constructDecideUpdates(token, mConnectIntegrations);
-        // TODO reading persistent identify immediately forces the lazy load of the preferences, and defeats the
-        // purpose of PersistentIdentity's laziness.
         String decideId = mPersistentIdentity.getPeopleDistinctId();
         if (null == decideId) {
             decideId = mPersistentIdentity.getEventsDistinctId();
@@ -163,8 +201,6 @@ public class MixpanelAPI {
 
         final boolean dbExists = MPDbAdapter.getInstance(mContext).getDatabaseFile().exists();
 
-        registerMixpanelActivityLifecycleCallbacks();
-
         if (ConfigurationChecker.checkInstallReferrerConfiguration(sReferrerPrefs)) {
             InstallReferrerPlay referrerPlay = new InstallReferrerPlay(getContext(), new InstallReferrerPlay.ReferrerCallback() {
                 @Override
@@ -505,12 +541,19 @@ public class MixpanelAPI {
      * @param eventName the name of the event to track with timing.
      */
     public void timeEvent(final String eventName) {
-        if (hasOptedOutTracking()) return;
-        final long writeTime = System.currentTimeMillis();
-        synchronized (mEventTimings) {
-            mEventTimings.put(eventName, writeTime);
-            mPersistentIdentity.addTimeEvent(eventName, writeTime);
-        }
+        timeEvent(eventName, System.currentTimeMillis());
+    }
+
+    private void timeEvent(final String eventName, final long writeTime) {
+        final boolean deferred = deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                timeEvent(eventName, writeTime);
+            }
+        });
+        if (deferred || hasOptedOutTracking()) return;
+        mEventTimings.put(eventName, writeTime);
+        mPersistentIdentity.storeTimeEvents(mEventTimings);
     }
 
     /**
@@ -521,11 +564,9 @@ public class MixpanelAPI {
      * @return Time elapsed since {@link #timeEvent(String)} was called for the given eventName.
      */
     public double eventElapsedTime(final String eventName) {
+        awaitInitialization();
         final long currentTime = System.currentTimeMillis();
-        Long startTime;
-        synchronized (mEventTimings) {
-            startTime = mEventTimings.get(eventName);
-        }
+        final Long startTime = mEventTimings.get(eventName);
         return startTime == null ? 0 : (double)((currentTime - startTime) / 1000);
     }
 
@@ -544,7 +585,6 @@ public class MixpanelAPI {
      * See also {@link #track(String, org.json.JSONObject)}
      */
     public void trackMap(String eventName, Map<String, Object> properties) {
-        if (hasOptedOutTracking()) return;
         if (null == properties) {
             track(eventName, null);
         } else {
@@ -572,8 +612,6 @@ public class MixpanelAPI {
      * See also {@link #track(String, org.json.JSONObject)}, {@link #trackMap(String, Map)}
      */
     public void trackWithGroups(String eventName, Map<String, Object> properties, Map<String, Object> groups) {
-        if (hasOptedOutTracking()) return;
-
         if (null == groups) {
             trackMap(eventName, properties);
         } else if (null == properties) {
@@ -602,7 +640,6 @@ public class MixpanelAPI {
      *                   Pass null if no extra properties exist.
      */
     public void track(String eventName, JSONObject properties) {
-        if (hasOptedOutTracking()) return;
         track(eventName, properties, false);
     }
 
@@ -612,10 +649,33 @@ public class MixpanelAPI {
      * @param eventName the name of the event to send
      */
     public void track(String eventName) {
-        if (hasOptedOutTracking()) return;
         track(eventName, null);
     }
 
+    /**
+     * Starts an event that is tracked when {@link EventBuilder#track()} is called.
+     * Equivalent to {@link #track(String, JSONObject)}, but properties are added directly to the
+     * returned builder, so no JSONObject or Map of properties has to be built for each event.
+     *
+     * @param eventName the name of the event to send
+     * @return an {@link EventBuilder} for the event. Don't keep it after calling track() on it.
+     */
+    public EventBuilder event(String eventName) {
+        EventBuilderImpl builder = null;
+        synchronized (mEventBuilderPool) {
+            if (mEventBuilderPoolSize > 0) {
+                mEventBuilderPoolSize--;
+                builder = mEventBuilderPool[mEventBuilderPoolSize];
+                mEventBuilderPool[mEventBuilderPoolSize] = null;
+            }
+        }
+        if (null == builder) {
+            builder = new EventBuilderImpl();
+        }
+        builder.start(eventName);
+        return builder;
+    }
+
     /**
      * Push all queued Mixpanel events and People Analytics changes to Mixpanel servers.
      *
@@ -641,6 +701,7 @@ public class MixpanelAPI {
      * @return Super properties for this Mixpanel instance.
      */
       public JSONObject getSuperProperties() {
+          awaitInitialization();
           JSONObject ret = new JSONObject();
           mPersistentIdentity.addSuperPropertiesToObject(ret);
           return ret;
@@ -661,6 +722,7 @@ public class MixpanelAPI {
      * @see People#getDistinctId()
      */
     public String getDistinctId() {
+        awaitInitialization();
         return mPersistentIdentity.getEventsDistinctId();
     }
 
@@ -803,6 +865,7 @@ public class MixpanelAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void clearSuperProperties() {
+        awaitInitialization();
         mPersistentIdentity.clearSuperProperties();
     }
 
@@ -984,6 +1047,7 @@ public class MixpanelAPI {
         // Will clear distinct_ids, superProperties,
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
+        awaitInitialization();
         mPersistentIdentity.clearPreferences();
         getAnalyticsMessages().clearAnonymousUpdatesMessage(new AnalyticsMessages.MixpanelDescription(mToken));
         identify(getDistinctId(), false);
@@ -1000,6 +1064,7 @@ public class MixpanelAPI {
      * @return Map containing the device description properties that are sent to Mixpanel.
      */
     public Map<String, String> getDeviceInfo() {
+        awaitInitialization();
         return mDeviceInfo;
     }
 
@@ -1011,16 +1076,15 @@ public class MixpanelAPI {
      * This method will also remove any user-related information from the device.
      */
     public void optOutTracking() {
+        awaitInitialization();
         getAnalyticsMessages().emptyTrackingQueues(new AnalyticsMessages.MixpanelDescription(mToken));
         if (getPeople().isIdentified()) {
             getPeople().deleteUser();
             getPeople().clearCharges();
         }
         mPersistentIdentity.clearPreferences();
-        synchronized (mEventTimings) {
-            mEventTimings.clear();
-            mPersistentIdentity.clearTimeEvents();
-        }
+        mEventTimings.clear();
+        mPersistentIdentity.storeTimeEvents(mEventTimings);
         mPersistentIdentity.clearReferrerProperties();
         mPersistentIdentity.setOptOutTracking(true, mToken);
     }
@@ -1070,6 +1134,7 @@ public class MixpanelAPI {
      * See also {@link #optInTracking()} and {@link #optOutTracking()}.
      */
     public void optInTracking(String distinctId, JSONObject properties) {
+        awaitInitialization();
         mPersistentIdentity.setOptOutTracking(false, mToken);
         if (distinctId != null) {
             identify(distinctId);
@@ -1083,6 +1148,7 @@ public class MixpanelAPI {
      * @return true if user has opted out from tracking. Defaults to false.
      */
     public boolean hasOptedOutTracking() {
+        awaitInitialization();
         return mPersistentIdentity.getOptOutTracking(mToken);
     }
 
@@ -1461,6 +1527,75 @@ public class MixpanelAPI {
         void deleteGroup();
     }
 
+    /**
+     * Builds the properties of a single event without a JSONObject or Map, and tracks it.
+     * Get one from {@link MixpanelAPI#event(String)}.
+     *
+     * <p>Primitive property values are held unboxed until the event is tracked, and builders
+     * are reused, so this is the cheapest way to track events with many properties, or
+     * events tracked many times a second.
+     *
+     * <pre>
+     * {@code
+     *     mixpanel.event("Level Complete")
+     *             .put("level", 12)
+     *             .put("score", 4012.5)
+     *             .put("used hint", false)
+     *             .put("character", "Wizard")
+     *             .track();
+     * }
+     * </pre>
+     *
+     * <p>A builder is recycled as soon as {@link #track()} is called, so it must not be
+     * kept or used again afterwards, and must only be used by one thread at a time.
+     *
+     * @see MixpanelAPI#event(String)
+     */
+    public interface EventBuilder {
+        /**
+         * Adds a property with an integer value. A later value for the same name replaces this one.
+         *
+         * @param propertyName the name of the property
+         * @param value the value of the property
+         * @return this builder
+         */
+        EventBuilder put(String propertyName, long value);
+
+        /**
+         * Adds a property with a numeric value. A later value for the same name replaces this one.
+         *
+         * @param propertyName the name of the property
+         * @param value the value of the property. Must be finite.
+         * @return this builder
+         */
+        EventBuilder put(String propertyName, double value);
+
+        /**
+         * Adds a property with a boolean value. A later value for the same name replaces this one.
+         *
+         * @param propertyName the name of the property
+         * @param value the value of the property
+         * @return this builder
+         */
+        EventBuilder put(String propertyName, boolean value);
+
+        /**
+         * Adds a property with any value accepted by {@link JSONObject#put(String, Object)},
+         * for example a String or a JSONArray. A later value for the same name replaces this one.
+         *
+         * @param propertyName the name of the property
+         * @param value the value of the property
+         * @return this builder
+         */
+        EventBuilder put(String propertyName, Object value);
+
+        /**
+         * Tracks the event with the properties added so far, exactly like
+         * {@link MixpanelAPI#track(String, JSONObject)}, and recycles this builder.
+         */
+        void track();
+    }
+
     /**
      * Attempt to register MixpanelActivityLifecycleCallbacks to the application's event lifecycle.
      * Once registered, we can automatically flush on an app background.
@@ -1507,6 +1642,7 @@ public class MixpanelAPI {
         if (mConfig.getFlushOnBackground()) {
             flush();
         }
+        mPersistentIdentity.flushWrites();
     }
 
     /* package */ void onForeground() {
@@ -1553,7 +1689,12 @@ public class MixpanelAPI {
         };
 
         final String prefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token;
-        final Future<SharedPreferences> storedPreferences = sPrefsLoader.loadPreferences(context, prefsName, listener);
+        final Future<SharedPreferences> storedPreferences;
+        if (mConfig.getUseBinaryIdentityStorage()) {
+            storedPreferences = sPrefsLoader.loadBinaryPreferences(context, prefsName, listener);
+        } else {
+            storedPreferences = sPrefsLoader.loadPreferences(context, prefsName, listener);
+        }
 
         final String timeEventsPrefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI.TimeEvents_" + token;
         final Future<SharedPreferences> timeEventsPrefs = sPrefsLoader.loadPreferences(context, timeEventsPrefsName, null);
@@ -1561,7 +1702,7 @@ public class MixpanelAPI {
         final String mixpanelPrefsName = "com.mixpanel.android.mpmetrics.Mixpanel";
         final Future<SharedPreferences> mixpanelPrefs = sPrefsLoader.loadPreferences(context, mixpanelPrefsName, null);
 
-        return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs);
+        return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs, mConfig);
     }
 
     /* package */ DecideMessages constructDecideUpdates(final String token, ConnectIntegrations connectIntegrations) {
@@ -1798,6 +1939,7 @@ public class MixpanelAPI {
 
         @Override
         public String getDistinctId() {
+            awaitInitialization();
             return mPersistentIdentity.getPeopleDistinctId();
         }
 
@@ -1994,59 +2136,171 @@ public class MixpanelAPI {
         }
     }// GroupImpl
 
-    ////////////////////////////////////////////////////
-    protected void flushNoDecideCheck() {
-        if (hasOptedOutTracking()) return;
-        mMessages.postToServer(new AnalyticsMessages.FlushDescription(mToken, false));
-    }
+    // Holds property values in arrays by type, reused across events through mEventBuilderPool,
+    // and writes them straight into the event's properties when it is tracked.
+    private class EventBuilderImpl implements EventBuilder {
+        public EventBuilderImpl() {
+            mNames = new String[INITIAL_PROPERTY_CAPACITY];
+            mTypes = new byte[INITIAL_PROPERTY_CAPACITY];
+            mLongs = new long[INITIAL_PROPERTY_CAPACITY];
+            mDoubles = new double[INITIAL_PROPERTY_CAPACITY];
+            mObjects = new Object[INITIAL_PROPERTY_CAPACITY];
+        }
 
-    protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
-        if (hasOptedOutTracking() || (isAutomaticEvent && !mDecideMessages.shouldTrackAutomaticEvent())) {
-            return;
+        /* package */ void start(String eventName) {
+            mEventName = eventName;
+            mSize = 0;
+        }
+
+        @Override
+        public EventBuilder put(String propertyName, long value) {
+            final int index = add(propertyName, TYPE_LONG);
+            mLongs[index] = value;
+            return this;
         }
 
-        final Long eventBegin;
-        synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-            mPersistentIdentity.removeTimeEvent(eventName);
+        @Override
+        public EventBuilder put(String propertyName, double value) {
+            final int index = add(propertyName, TYPE_DOUBLE);
+            mDoubles[index] = value;
+            return this;
         }
 
-        try {
-            final JSONObject messageProps = new JSONObject();
+        @Override
+        public EventBuilder put(String propertyName, boolean value) {
+            final int index = add(propertyName, TYPE_BOOLEAN);
+            mLongs[index] = value ? 1 : 0;
+            return this;
+        }
 
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
+        @Override
+        public EventBuilder put(String propertyName, Object value) {
+            final int index = add(propertyName, TYPE_OBJECT);
+            mObjects[index] = value;
+            return this;
+        }
+
+        @Override
+        public void track() {
+            final String eventName = mEventName;
+            final long eventTime = System.currentTimeMillis();
+            try {
+                if (isInitializing()) {
+                    // Slow path, the builder is recycled so its properties are copied to be tracked later
+                    final JSONObject properties = new JSONObject();
+                    addProperties(properties);
+                    MixpanelAPI.this.track(eventName, properties, false, eventTime);
+                    return;
+                }
+                if (hasOptedOutTracking()) return;
+
+                final JSONObject messageProps = makeEventProperties(eventName, eventTime);
+                addProperties(messageProps);
+
+                final AnalyticsMessages.EventDescription eventDescription =
+                        new AnalyticsMessages.EventDescription(eventName, messageProps,
+                                mToken, false, mSessionMetadata.getMetadataForEvent());
+                mMessages.eventsMessage(eventDescription);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+            } finally {
+                recycle();
             }
+        }
 
-            mPersistentIdentity.addSuperPropertiesToObject(messageProps);
+        private void addProperties(JSONObject messageProps) throws JSONException {
+            for (int i = 0; i < mSize; i++) {
+                switch (mTypes[i]) {
+                    case TYPE_LONG:
+                        messageProps.put(mNames[i], mLongs[i]);
+                        break;
+                    case TYPE_DOUBLE:
+                        messageProps.put(mNames[i], mDoubles[i]);
+                        break;
+                    case TYPE_BOOLEAN:
+                        messageProps.put(mNames[i], mLongs[i] != 0);
+                        break;
+                    default:
+                        messageProps.put(mNames[i], mObjects[i]);
+                        break;
+                }
+            }
+        }
 
-            // Don't allow super properties or referral properties to override these fields,
-            // but DO allow the caller to override them in their given properties.
-            final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
-            final long timeSeconds = (long) timeSecondsDouble;
-            final String distinctId = getDistinctId();
-            final String anonymousId = getAnonymousId();
-            final String userId = getUserId();
-            messageProps.put("time", timeSeconds);
-            messageProps.put("distinct_id", distinctId);
-            messageProps.put("$had_persisted_distinct_id", mPersistentIdentity.getHadPersistedDistinctId());
-            if(anonymousId != null) {
-                messageProps.put("$device_id", anonymousId);
+        private int add(String propertyName, byte type) {
+            if (mSize == mNames.length) {
+                final int capacity = mSize * 2;
+                mNames = Arrays.copyOf(mNames, capacity);
+                mTypes = Arrays.copyOf(mTypes, capacity);
+                mLongs = Arrays.copyOf(mLongs, capacity);
+                mDoubles = Arrays.copyOf(mDoubles, capacity);
+                mObjects = Arrays.copyOf(mObjects, capacity);
             }
-            if(userId != null) {
-                messageProps.put("$user_id", userId);
+            mNames[mSize] = propertyName;
+            mTypes[mSize] = type;
+            return mSize++;
+        }
+
+        private void recycle() {
+            // Don't hold on to the caller's strings and objects while pooled
+            Arrays.fill(mNames, 0, mSize, null);
+            Arrays.fill(mObjects, 0, mSize, null);
+            mEventName = null;
+            mSize = 0;
+            synchronized (mEventBuilderPool) {
+                if (mEventBuilderPoolSize < mEventBuilderPool.length) {
+                    mEventBuilderPool[mEventBuilderPoolSize] = this;
+                    mEventBuilderPoolSize++;
+                }
             }
+        }
+
+        private String mEventName;
+        private int mSize;
+        private String[] mNames;
+        private byte[] mTypes;
+        private long[] mLongs; // longs and booleans
+        private double[] mDoubles;
+        private Object[] mObjects;
+
+        private static final int INITIAL_PROPERTY_CAPACITY = 8;
+        private static final byte TYPE_LONG = 0;
+        private static final byte TYPE_DOUBLE = 1;
+        private static final byte TYPE_BOOLEAN = 2;
+        private static final byte TYPE_OBJECT = 3;
+    }// EventBuilderImpl
+
+    ////////////////////////////////////////////////////
+    protected void flushNoDecideCheck() {
+        if (hasOptedOutTracking()) return;
+        mMessages.postToServer(new AnalyticsMessages.FlushDescription(mToken, false));
+    }
 
-            if (null != eventBegin) {
-                final double eventBeginDouble = ((double) eventBegin) / 1000.0;
-                final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
-                messageProps.put("$duration", secondsElapsed);
+    protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+        track(eventName, properties, isAutomaticEvent, System.currentTimeMillis());
+    }
+
+    private void track(final String eventName, JSONObject properties, final boolean isAutomaticEvent, final long eventTime) {
+        if (isInitializing()) {
+            // The caller may change their properties before the event is tracked
+            final JSONObject propertiesCopy = null == properties ? null : copyProperties(properties);
+            final boolean deferred = deferUntilInitialized(new Runnable() {
+                @Override
+                public void run() {
+                    track(eventName, propertiesCopy, isAutomaticEvent, eventTime);
+                }
+            });
+            if (deferred) {
+                return;
             }
+        }
 
+        if (hasOptedOutTracking() || (isAutomaticEvent && !mDecideMessages.shouldTrackAutomaticEvent())) {
+            return;
+        }
+
+        try {
+            final JSONObject messageProps = makeEventProperties(eventName, eventTime);
             if (null != properties) {
                 final Iterator<?> propIter = properties.keys();
                 while (propIter.hasNext()) {
@@ -2064,6 +2318,53 @@ public class MixpanelAPI {
         }
     }
 
+    // Returns the properties every tracked event gets before its own properties are added,
+    // and ends the timing of the event if there is one.
+    private JSONObject makeEventProperties(String eventName, long eventTime) throws JSONException {
+        // Most events aren't timed, and for those this is a lock-free lookup and nothing more
+        Long eventBegin = mEventTimings.get(eventName);
+        if (null != eventBegin) {
+            eventBegin = mEventTimings.remove(eventName);
+            mPersistentIdentity.storeTimeEvents(mEventTimings);
+        }
+
+        final JSONObject messageProps = new JSONObject();
+
+        final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
+        for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+            messageProps.put(key, value);
+        }
+
+        mPersistentIdentity.addSuperPropertiesToObject(messageProps);
+
+        // Don't allow super properties or referral properties to override these fields,
+        // but DO allow the caller to override them in their given properties.
+        final double timeSecondsDouble = eventTime / 1000.0;
+        final long timeSeconds = (long) timeSecondsDouble;
+        final String distinctId = getDistinctId();
+        final String anonymousId = getAnonymousId();
+        final String userId = getUserId();
+        messageProps.put("time", timeSeconds);
+        messageProps.put("distinct_id", distinctId);
+        messageProps.put("$had_persisted_distinct_id", mPersistentIdentity.getHadPersistedDistinctId());
+        if(anonymousId != null) {
+            messageProps.put("$device_id", anonymousId);
+        }
+        if(userId != null) {
+            messageProps.put("$user_id", userId);
+        }
+
+        if (null != eventBegin) {
+            final double eventBeginDouble = ((double) eventBegin) / 1000.0;
+            final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
+            messageProps.put("$duration", secondsElapsed);
+        }
+
+        return messageProps;
+    }
+
     private void recordPeopleMessage(JSONObject message) {
         if (hasOptedOutTracking()) return;
         mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
@@ -2145,6 +2446,95 @@ public class MixpanelAPI {
         return mContext;
     }
 
+    // True until initialization, and the calls deferred while it ran, are done
+    private boolean isInitializing() {
+        return mInitialized.getCount() > 0 && mInitializingThread != Thread.currentThread();
+    }
+
+    // Queues call to run once initialization is done, and returns true, unless initialization is
+    // already done or the caller is initializing, in which case the caller should go ahead.
+    private boolean deferUntilInitialized(Runnable call) {
+        if (mInitializingThread == Thread.currentThread()) {
+            return false;
+        }
+        synchronized (mInitializationLock) {
+            if (null == mDeferredCalls) {
+                return false;
+            }
+            mDeferredCalls.add(call);
+            return true;
+        }
+    }
+
+    // Calls that read or change state wait here, so they see the loaded state and run after any deferred calls
+    private void awaitInitialization() {
+        if (!isInitializing()) {
+            return;
+        }
+        try {
+            mInitialized.await();
+        } catch (final InterruptedException e) {
+            MPLog.e(LOGTAG, "Interrupted waiting for Mixpanel to initialize", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finishInitialization() {
+        while (true) {
+            final List<Runnable> calls;
+            synchronized (mInitializationLock) {
+                if (mDeferredCalls.isEmpty()) {
+                    mDeferredCalls = null;
+                    break;
+                }
+                calls = mDeferredCalls;
+                mDeferredCalls = new ArrayList<Runnable>();
+            }
+            for (final Runnable call : calls) {
+                try {
+                    call.run();
+                } catch (final RuntimeException e) {
+                    MPLog.e(LOGTAG, "Exception in a call made while Mixpanel was initializing", e);
+                }
+            }
+        }
+        mInitializingThread = null;
+        mInitialized.countDown();
+    }
+
+    private static JSONObject copyProperties(JSONObject properties) {
+        final JSONObject copy = new JSONObject();
+        try {
+            final Iterator<?> keys = properties.keys();
+            while (keys.hasNext()) {
+                final String key = (String) keys.next();
+                copy.put(key, properties.get(key));
+            }
+        } catch (final JSONException e) {
+            MPLog.e(LOGTAG, "Can't copy event properties", e);
+        }
+        return copy;
+    }
+
+    private static Executor getInitializer() {
+        synchronized (sInitializerLock) {
+            if (null == sInitializer) {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                final Thread thread = new Thread(r, "com.mixpanel.android.Initializer");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                sInitializer = executor;
+            }
+            return sInitializer;
+        }
+    }
+
     private final Context mContext;
     private final AnalyticsMessages mMessages;
     private final MPConfig mConfig;
@@ -2154,17 +2544,26 @@ public class MixpanelAPI {
     private final PersistentIdentity mPersistentIdentity;
     private final ConnectIntegrations mConnectIntegrations;
     private final DecideMessages mDecideMessages;
-    private final Map<String, String> mDeviceInfo;
-    private final Map<String, Long> mEventTimings;
+    private volatile Map<String, String> mDeviceInfo; // set by initialize()
+    private final Map<String, Long> mEventTimings; // concurrent, the stored timings follow it, see PersistentIdentity.storeTimeEvents()
+    private final EventBuilderImpl[] mEventBuilderPool = new EventBuilderImpl[EVENT_BUILDER_POOL_SIZE];
+    private int mEventBuilderPoolSize = 0; // guarded by mEventBuilderPool
     private MixpanelActivityLifecycleCallbacks mMixpanelActivityLifecycleCallbacks;
     private final SessionMetadata mSessionMetadata;
+    private final Object mInitializationLock = new Object();
+    private List<Runnable> mDeferredCalls; // guarded by mInitializationLock, null once initialization is done
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
+    private volatile Thread mInitializingThread;
 
     // Maps each token to a singleton MixpanelAPI instance
     private static final Map<String, Map<Context, MixpanelAPI>> sInstanceMap = new HashMap<String, Map<Context, MixpanelAPI>>();
     private static final SharedPreferencesLoader sPrefsLoader = new SharedPreferencesLoader();
     private static Future<SharedPreferences> sReferrerPrefs;
+    private static ThreadPoolExecutor sInitializer; // created on first use, see getInitializer()
+    private static final Object sInitializerLock = new Object();
 
     private static final String LOGTAG = "MixpanelAPI.API";
     private static final String APP_LINKS_LOGTAG = "MixpanelAPI.AL";
     private static final String ENGAGE_DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final int EVENT_BUILDER_POOL_SIZE = 4; // Enough for a few threads tracking at once
 }
@@ -7,7 +7,10 @@ import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -40,6 +43,15 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences) {
+        this(referrerPreferences, storedPreferences, timeEventsPreferences, mixpanelPreferences, null);
+    }
+
+    // With a null config, every write is applied right away and nothing is reported
+    public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences, MPConfig config) {
+        final long writeWindow = null == config ? 0 : config.getPersistenceWriteWindow();
+        mStoredWrites = new WriteBehindPreferences("identity", storedPreferences, writeWindow, config);
+        mTimeEventsWrites = new WriteBehindPreferences("timeEvents", timeEventsPreferences, writeWindow, config);
+        mMixpanelWrites = new WriteBehindPreferences("mixpanel", mixpanelPreferences, writeWindow, config);
         mLoadReferrerPreferences = referrerPreferences;
         mLoadStoredPreferences = storedPreferences;
         mTimeEventsPreferences = timeEventsPreferences;
@@ -59,36 +71,28 @@ import com.mixpanel.android.util.MPLog;
     }
 
     // Super properties
+    //
+    // mSuperPropertiesCache is never modified once it is published. Readers use whatever
+    // snapshot is current without locking, and writers replace it with a modified copy
+    // while holding mSuperPropsLock, then write it to SharedPreferences in the background.
     public void addSuperPropertiesToObject(JSONObject ob) {
-        synchronized (mSuperPropsLock) {
-            final JSONObject superProperties = this.getSuperPropertiesCache();
-            final Iterator<?> superIter = superProperties.keys();
-            while (superIter.hasNext()) {
-                final String key = (String) superIter.next();
+        final JSONObject superProperties = this.getSuperPropertiesCache();
+        final Iterator<?> superIter = superProperties.keys();
+        while (superIter.hasNext()) {
+            final String key = (String) superIter.next();
 
-                try {
-                    ob.put(key, superProperties.get(key));
-                } catch (JSONException e) {
-                    MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
-                }
+            try {
+                ob.put(key, superProperties.get(key));
+            } catch (JSONException e) {
+                MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
             }
         }
     }
 
     public void updateSuperProperties(SuperPropertyUpdate updates) {
         synchronized (mSuperPropsLock) {
-            final JSONObject oldPropCache = getSuperPropertiesCache();
-            final JSONObject copy = new JSONObject();
-
-            try {
-                final Iterator<String> keys = oldPropCache.keys();
-                while (keys.hasNext()) {
-                    final String k = keys.next();
-                    final Object v = oldPropCache.get(k);
-                    copy.put(k, v);
-                }
-            } catch (JSONException e) {
-                MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+            final JSONObject copy = copySuperProperties();
+            if (copy == null) {
                 return;
             }
 
@@ -98,14 +102,22 @@ import com.mixpanel.android.util.MPLog;
                 return;
             }
 
-            mSuperPropertiesCache = replacementCache;
+            // The update may have returned an object it keeps, so publish our own copy
+            final JSONObject snapshot = copy == replacementCache ? copy : copyOf(replacementCache);
+            if (snapshot == null) {
+                return;
+            }
+            mSuperPropertiesCache = snapshot;
             storeSuperProperties();
         }
     }
 
     public void registerSuperProperties(JSONObject superProperties) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = copySuperProperties();
+            if (propCache == null) {
+                return;
+            }
 
             for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
                 final String key = (String) iter.next();
@@ -116,22 +128,30 @@ import com.mixpanel.android.util.MPLog;
                 }
             }
 
+            mSuperPropertiesCache = propCache;
             storeSuperProperties();
         }
     }
 
     public void unregisterSuperProperty(String superPropertyName) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = copySuperProperties();
+            if (propCache == null) {
+                return;
+            }
             propCache.remove(superPropertyName);
 
+            mSuperPropertiesCache = propCache;
             storeSuperProperties();
         }
     }
 
     public void registerSuperPropertiesOnce(JSONObject superProperties) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = copySuperProperties();
+            if (propCache == null) {
+                return;
+            }
 
             for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
                 final String key = (String) iter.next();
@@ -144,6 +164,7 @@ import com.mixpanel.android.util.MPLog;
                 }
             }// for
 
+            mSuperPropertiesCache = propCache;
             storeSuperProperties();
         }
     }
@@ -259,37 +280,19 @@ import com.mixpanel.android.util.MPLog;
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
 
-        try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final SharedPreferences.Editor prefsEdit = prefs.edit();
-            prefsEdit.clear();
-            writeEdits(prefsEdit);
-            readSuperProperties();
-            readIdentities();
-        } catch (final ExecutionException e) {
-            throw new RuntimeException(e.getCause());
-        } catch (final InterruptedException e) {
-            throw new RuntimeException(e.getCause());
-        }
-    }
-
-    public void clearTimeEvents() {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.clear();
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        synchronized (mSuperPropsLock) {
+            mStoredWrites.clear();
+            // Same as reading the cleared preferences, and supersedes any pending write
+            mSuperPropertiesCache = new JSONObject();
         }
+        readIdentities();
     }
 
     public Map<String, Long> getTimeEvents() {
         Map<String, Long> timeEvents = new HashMap<>();
 
         try {
+            awaitBackgroundWrites();
             final SharedPreferences prefs = mTimeEventsPreferences.get();
 
             Map<String, ?> allEntries = prefs.getAll();
@@ -305,37 +308,25 @@ import com.mixpanel.android.util.MPLog;
         return timeEvents;
     }
 
-    // access is synchronized outside (mEventTimings)
-    public void removeTimeEvent(String timeEventName) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.remove(timeEventName);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-    }
-
-    // access is synchronized outside (mEventTimings)
-    public void addTimeEvent(String timeEventName, Long timeEventTimestamp) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putLong(timeEventName, timeEventTimestamp);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+    // Schedules a write of timeEvents, a concurrent map that may keep changing. The write
+    // stores whatever the map holds when it runs, so a burst of changes is written once
+    // and the stored timings always end up matching the map.
+    public void storeTimeEvents(Map<String, Long> timeEvents) {
+        mTimeEventsToWrite = timeEvents;
+        if (mTimeEventsWritePending.compareAndSet(false, true)) {
+            getBackgroundWriter().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeTimeEvents();
+                }
+            });
         }
     }
 
     public synchronized boolean isFirstIntegration(String token) {
         boolean firstLaunch = false;
         try {
+            WriteBehindPreferences.writeAll();
             SharedPreferences prefs = mMixpanelPreferences.get();
             firstLaunch = prefs.getBoolean(token, false);
         }  catch (final ExecutionException e) {
@@ -347,15 +338,7 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void setIsIntegrated(String token) {
-        try {
-            SharedPreferences.Editor mixpanelEditor = mMixpanelPreferences.get().edit();
-            mixpanelEditor.putBoolean(token, true);
-            writeEdits(mixpanelEditor);
-        } catch (ExecutionException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel shared preferences.", e.getCause());
-        } catch (InterruptedException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel from shared preferences.", e);
-        }
+        mMixpanelWrites.putBoolean(token, true);
     }
 
     public synchronized boolean isNewVersion(String versionCode) {
@@ -366,26 +349,23 @@ import com.mixpanel.android.util.MPLog;
         Integer version = Integer.valueOf(versionCode);
         try {
             if (sPreviousVersionCode == null) {
+                WriteBehindPreferences.writeAll();
                 SharedPreferences mixpanelPreferences = mMixpanelPreferences.get();
                 sPreviousVersionCode = mixpanelPreferences.getInt("latest_version_code", -1);
                 if (sPreviousVersionCode == -1) {
                     sPreviousVersionCode = version;
-                    SharedPreferences.Editor mixpanelPreferencesEditor = mMixpanelPreferences.get().edit();
-                    mixpanelPreferencesEditor.putInt("latest_version_code", version);
-                    writeEdits(mixpanelPreferencesEditor);
+                    mMixpanelWrites.putInt("latest_version_code", version);
                 }
             }
 
             if (sPreviousVersionCode.intValue() < version.intValue()) {
-                SharedPreferences.Editor mixpanelPreferencesEditor = mMixpanelPreferences.get().edit();
-                mixpanelPreferencesEditor.putInt("latest_version_code", version);
-                writeEdits(mixpanelPreferencesEditor);
+                mMixpanelWrites.putInt("latest_version_code", version);
                 return true;
             }
         } catch (ExecutionException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel shared preferences.", e.getCause());
+            MPLog.e(LOGTAG, "Couldn't read internal Mixpanel shared preferences.", e.getCause());
         } catch (InterruptedException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel from shared preferences.", e);
+            MPLog.e(LOGTAG, "Couldn't read internal Mixpanel shared preferences.", e);
         }
 
         return false;
@@ -394,6 +374,7 @@ import com.mixpanel.android.util.MPLog;
     public synchronized boolean isFirstLaunch(boolean dbExists, String token) {
         if (sIsFirstAppLaunch == null) {
             try {
+                WriteBehindPreferences.writeAll();
                 SharedPreferences mixpanelPreferences = mMixpanelPreferences.get();
                 boolean hasLaunched = mixpanelPreferences.getBoolean("has_launched_" + token, false);
                 if (hasLaunched) {
@@ -415,15 +396,7 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void setHasLaunched(String token) {
-        try {
-            SharedPreferences.Editor mixpanelPreferencesEditor = mMixpanelPreferences.get().edit();
-            mixpanelPreferencesEditor.putBoolean("has_launched_" + token, true);
-            writeEdits(mixpanelPreferencesEditor);
-        } catch (ExecutionException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel shared preferences.", e.getCause());
-        } catch (InterruptedException e) {
-            MPLog.e(LOGTAG, "Couldn't write internal Mixpanel shared preferences.", e);
-        }
+        mMixpanelWrites.putBoolean("has_launched_" + token, true);
     }
 
     public synchronized void setOptOutTracking(boolean optOutTracking, String token) {
@@ -439,32 +412,74 @@ import com.mixpanel.android.util.MPLog;
         return mIsUserOptOut;
     }
 
+    /**
+     * Commits pending writes in the background without waiting for the write window,
+     * for when the app may be about to be killed.
+     */
+    public void flushWrites() {
+        WriteBehindPreferences.writeAllSoon();
+    }
+
     //////////////////////////////////////////////////
 
-    // Must be called from a synchronized setting
+    // Returns the current snapshot, which must not be modified
     private JSONObject getSuperPropertiesCache() {
-        if (mSuperPropertiesCache == null) {
-            readSuperProperties();
+        JSONObject ret = mSuperPropertiesCache;
+        if (ret == null) {
+            synchronized (mSuperPropsLock) {
+                if (mSuperPropertiesCache == null) {
+                    readSuperProperties();
+                }
+                ret = mSuperPropertiesCache;
+            }
         }
-        return mSuperPropertiesCache;
+        return ret;
     }
 
-    // All access should be synchronized on this
+    // Must be called while holding mSuperPropsLock. Returns a copy of the current
+    // snapshot that can be modified and published, or null if it can't be copied.
+    private JSONObject copySuperProperties() {
+        return copyOf(getSuperPropertiesCache());
+    }
+
+    private static JSONObject copyOf(JSONObject properties) {
+        final JSONObject copy = new JSONObject();
+        try {
+            final Iterator<String> keys = properties.keys();
+            while (keys.hasNext()) {
+                final String k = keys.next();
+                final Object v = properties.get(k);
+                copy.put(k, v);
+            }
+        } catch (JSONException e) {
+            MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+            return null;
+        }
+        return copy;
+    }
+
+    // Must be called while holding mSuperPropsLock
     private void readSuperProperties() {
+        JSONObject superProperties = null;
         try {
+            // Another instance for the same token may still be writing its super properties
+            awaitBackgroundWrites();
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final String props = prefs.getString("super_properties", "{}");
             MPLog.v(LOGTAG, "Loading Super Properties " + props);
-            mSuperPropertiesCache = new JSONObject(props);
+            superProperties = new JSONObject(props);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e);
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Cannot parse stored superProperties");
+            mSuperPropertiesCache = new JSONObject();
             storeSuperProperties();
         } finally {
-            if (mSuperPropertiesCache == null) {
+            if (superProperties != null) {
+                mSuperPropertiesCache = superProperties;
+            } else if (mSuperPropertiesCache == null) {
                 mSuperPropertiesCache = new JSONObject();
             }
         }
@@ -492,32 +507,78 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
-    // All access should be synchronized on this
+    // Must be called while holding mSuperPropsLock. Serializing and writing happen on
+    // the background writer, and a burst of changes is written once, as its final snapshot.
     private void storeSuperProperties() {
         if (mSuperPropertiesCache == null) {
             MPLog.e(LOGTAG, "storeSuperProperties should not be called with uninitialized superPropertiesCache.");
             return;
         }
 
-        final String props = mSuperPropertiesCache.toString();
+        if (mSuperPropertiesWritePending.compareAndSet(false, true)) {
+            getBackgroundWriter().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeSuperProperties();
+                }
+            });
+        }
+    }
+
+    // Runs on the background writer
+    private void writeSuperProperties() {
+        // Cleared first, so a change made from here on schedules another write
+        mSuperPropertiesWritePending.set(false);
+        final JSONObject snapshot = mSuperPropertiesCache;
+        final String props = snapshot.toString();
         MPLog.v(LOGTAG, "Storing Super Properties " + props);
 
+        synchronized (mSuperPropsLock) {
+            if (snapshot != mSuperPropertiesCache) {
+                return; // Superseded, and the newer snapshot is already scheduled or cleared
+            }
+            mStoredWrites.putString("super_properties", props);
+        }
+    }
+
+    // Runs on the background writer
+    private void writeTimeEvents() {
+        // Cleared first, so a change made from here on schedules another write
+        mTimeEventsWritePending.set(false);
+        final Map<String, Long> timeEvents = mTimeEventsToWrite;
+        mTimeEventsWrites.replaceAll(new HashMap<String, Long>(timeEvents));
+    }
+
+    // Waits until every write scheduled so far has been handed to SharedPreferences,
+    // including edits still held in a write window
+    /* package */ static void awaitBackgroundWrites() {
+        final FutureTask<Void> barrier = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing to do, the background writer runs tasks in order
+            }
+        }, null);
+        getBackgroundWriter().execute(barrier);
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putString("super_properties", props);
-            writeEdits(editor);
+            barrier.get();
         } catch (final ExecutionException e) {
-            MPLog.e(LOGTAG, "Cannot store superProperties in shared preferences.", e.getCause());
+            MPLog.e(LOGTAG, "Unexpected failure waiting for preferences to be written", e.getCause());
         } catch (final InterruptedException e) {
-            MPLog.e(LOGTAG, "Cannot store superProperties in shared preferences.", e);
+            MPLog.e(LOGTAG, "Interrupted waiting for preferences to be written", e);
         }
+        WriteBehindPreferences.writeAll();
+    }
+
+    // Runs tasks one at a time, in order, on the same thread that commits coalesced writes
+    private static Executor getBackgroundWriter() {
+        return WriteBehindPreferences.getWriter();
     }
 
     // All access should be synchronized on this
     private void readIdentities() {
         SharedPreferences prefs = null;
         try {
+            WriteBehindPreferences.writeAll();
             prefs = mLoadStoredPreferences.get();
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot read distinct ids from sharedPreferences.", e.getCause());
@@ -547,6 +608,7 @@ import com.mixpanel.android.util.MPLog;
     private void readOptOutFlag(String token) {
         SharedPreferences prefs = null;
         try {
+            WriteBehindPreferences.writeAll();
             prefs = mMixpanelPreferences.get();
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot read opt out flag from sharedPreferences.", e.getCause());
@@ -561,33 +623,16 @@ import com.mixpanel.android.util.MPLog;
     }
 
     private void writeOptOutFlag(String token) {
-        try {
-            final SharedPreferences prefs = mMixpanelPreferences.get();
-            final SharedPreferences.Editor prefsEditor = prefs.edit();
-            prefsEditor.putBoolean("opt_out_" + token, mIsUserOptOut);
-            writeEdits(prefsEditor);
-        } catch (final ExecutionException e) {
-            MPLog.e(LOGTAG, "Can't write opt-out shared preferences.", e.getCause());
-        } catch (final InterruptedException e) {
-            MPLog.e(LOGTAG, "Can't write opt-out shared preferences.", e);
-        }
+        mMixpanelWrites.putBoolean("opt_out_" + token, mIsUserOptOut);
     }
 
     protected void removeOptOutFlag(String token) {
-        try {
-            final SharedPreferences prefs = mMixpanelPreferences.get();
-            final SharedPreferences.Editor prefsEditor = prefs.edit();
-            prefsEditor.clear();
-            writeEdits(prefsEditor);
-        } catch (final ExecutionException e) {
-            MPLog.e(LOGTAG, "Can't remove opt-out shared preferences.", e.getCause());
-        } catch (final InterruptedException e) {
-            MPLog.e(LOGTAG, "Can't remove opt-out shared preferences.", e);
-        }
+        mMixpanelWrites.clear();
     }
 
     protected boolean hasOptOutFlag(String token) {
         try {
+            WriteBehindPreferences.writeAll();
             final SharedPreferences prefs = mMixpanelPreferences.get();
             return prefs.contains("opt_out_" + token);
         } catch (final ExecutionException e) {
@@ -599,21 +644,13 @@ import com.mixpanel.android.util.MPLog;
     }
     // All access should be synchronized on this
     private void writeIdentities() {
-        try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final SharedPreferences.Editor prefsEditor = prefs.edit();
-
-            prefsEditor.putString("events_distinct_id", mEventsDistinctId);
-            prefsEditor.putBoolean("events_user_id_present", mEventsUserIdPresent);
-            prefsEditor.putString("people_distinct_id", mPeopleDistinctId);
-            prefsEditor.putString("anonymous_id", mAnonymousId);
-            prefsEditor.putBoolean("had_persisted_distinct_id", mHadPersistedDistinctId);
-            writeEdits(prefsEditor);
-        } catch (final ExecutionException e) {
-            MPLog.e(LOGTAG, "Can't write distinct ids to shared preferences.", e.getCause());
-        } catch (final InterruptedException e) {
-            MPLog.e(LOGTAG, "Can't write distinct ids to shared preferences.", e);
-        }
+        final Map<String, Object> identities = new HashMap<String, Object>();
+        identities.put("events_distinct_id", mEventsDistinctId);
+        identities.put("events_user_id_present", mEventsUserIdPresent);
+        identities.put("people_distinct_id", mPeopleDistinctId);
+        identities.put("anonymous_id", mAnonymousId);
+        identities.put("had_persisted_distinct_id", mHadPersistedDistinctId);
+        mStoredWrites.putAll(identities);
     }
 
     private static void writeEdits(final SharedPreferences.Editor editor) {
@@ -624,9 +661,15 @@ import com.mixpanel.android.util.MPLog;
     private final Future<SharedPreferences> mLoadReferrerPreferences;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
+    private final WriteBehindPreferences mStoredWrites;
+    private final WriteBehindPreferences mTimeEventsWrites;
+    private final WriteBehindPreferences mMixpanelWrites;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
-    private JSONObject mSuperPropertiesCache;
+    private volatile JSONObject mSuperPropertiesCache; // immutable snapshot, replaced while holding mSuperPropsLock
     private final Object mSuperPropsLock = new Object();
+    private final AtomicBoolean mSuperPropertiesWritePending = new AtomicBoolean(false);
+    private volatile Map<String, Long> mTimeEventsToWrite;
+    private final AtomicBoolean mTimeEventsWritePending = new AtomicBoolean(false);
     private Map<String, String> mReferrerPropertiesCache;
     private boolean mIdentitiesLoaded;
     private String mEventsDistinctId;
@@ -0,0 +1,124 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when uploads to an endpoint may be retried after they fail.
+ *
+ * Each (endpoint, token) pair backs off on its own, so one failing endpoint doesn't hold up
+ * uploads to the others. After a failure the pair is open: nothing is sent until its retry time.
+ * After that it is half open, and a single probe request is let through. If the probe succeeds
+ * the pair is closed and sends normally again, otherwise it backs off for longer.
+ *
+ * Delays use decorrelated jitter, each one random between the base delay and three times the
+ * previous delay, capped at the max delay, so many devices that failed together don't retry
+ * together. A Retry-After from the server is honored when it asks for a longer wait.
+ *
+ * All methods are thread safe. Times are in milliseconds, from any monotonic clock.
+ */
+/* package */ class RetryScheduler {
+
+    public enum Permit {
+        /** Send normally */
+        ALLOWED,
+        /** Send a single request, and report how it went with onSuccess or onFailure, or call release */
+        PROBE,
+        /** Don't send yet */
+        DENIED
+    }
+
+    public RetryScheduler(long baseDelayMillis, long maxDelayMillis, Random random) {
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mRandom = random;
+        mStates = new HashMap<String, State>();
+        mLastDelayMillis = 0;
+    }
+
+    public static String key(String endpoint, String token) {
+        return endpoint + " " + token;
+    }
+
+    public synchronized Permit acquire(String key, long now) {
+        final State state = mStates.get(key);
+        if (null == state) {
+            return Permit.ALLOWED;
+        }
+        if (state.probing || now < state.retryAt) {
+            return Permit.DENIED;
+        }
+        state.probing = true;
+        return Permit.PROBE;
+    }
+
+    // Gives back a probe that sent nothing, so the next acquire can probe instead
+    public synchronized void release(String key) {
+        final State state = mStates.get(key);
+        if (null != state) {
+            state.probing = false;
+        }
+    }
+
+    public synchronized void onSuccess(String key) {
+        mStates.remove(key);
+    }
+
+    /**
+     * Records a failed request, and returns how long to wait before trying again.
+     *
+     * @param retryAfterMillis the wait the server asked for, or a negative number if it didn't say
+     */
+    public synchronized long onFailure(String key, long now, long retryAfterMillis) {
+        State state = mStates.get(key);
+        if (null == state) {
+            state = new State();
+            state.delay = mBaseDelayMillis;
+            mStates.put(key, state);
+        }
+
+        final long ceiling = Math.max(mBaseDelayMillis, Math.min(mMaxDelayMillis, state.delay * 3));
+        final long jittered = mBaseDelayMillis + (long) (mRandom.nextDouble() * (ceiling - mBaseDelayMillis));
+        state.delay = jittered;
+        final long delay = Math.max(jittered, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+
+        state.failures++;
+        state.retryAt = now + delay;
+        state.probing = false;
+        mLastDelayMillis = delay;
+        return delay;
+    }
+
+    public synchronized int getFailures(String key) {
+        final State state = mStates.get(key);
+        return null == state ? 0 : state.failures;
+    }
+
+    // How long until the key may be retried, or 0 if it may be tried now
+    public synchronized long getRemainingDelay(String key, long now) {
+        final State state = mStates.get(key);
+        return null == state ? 0 : Math.max(0, state.retryAt - now);
+    }
+
+    // The delay returned by the most recent onFailure, for any key
+    public synchronized long getLastDelay() {
+        return mLastDelayMillis;
+    }
+
+    private static class State {
+        long delay; // the jittered delay before the most recent retry, the basis of the next one
+        long retryAt;
+        int failures;
+        boolean probing;
+    }
+
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+    private final Map<String, State> mStates; // keys of endpoints that are open or half open
+    private long mLastDelayMillis;
+
+    // Servers asking for longer than this are probably misconfigured
+    private static final long MAX_RETRY_AFTER_MILLIS = 60 * 60 * 1000;
+}
@@ -1,5 +1,8 @@
 package com.mixpanel.android.mpmetrics;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -26,6 +29,23 @@ import android.content.SharedPreferences;
         return task;
     }
 
+    /**
+     * Like loadPreferences, but the values are kept in a BinaryPreferences file in the app's
+     * files directory. The first time, any values in the SharedPreferences file with the same
+     * name are moved into it. As with Context.getSharedPreferences, every load of the same name
+     * returns the same instance.
+     */
+    public Future<SharedPreferences> loadBinaryPreferences(Context context, String name, OnPrefsLoadedListener listener) {
+        final LoadBinaryPreferences loadBinaryPrefs = new LoadBinaryPreferences(context, name, listener);
+        final FutureTask<SharedPreferences> task = new FutureTask<SharedPreferences>(loadBinaryPrefs);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /* package */ static File getBinaryPreferencesFile(Context context, String name) {
+        return new File(context.getFilesDir(), name + ".mpprefs");
+    }
+
     private static class LoadSharedPreferences implements Callable<SharedPreferences> {
         public LoadSharedPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
             mContext = context;
@@ -47,5 +67,41 @@ import android.content.SharedPreferences;
         private final OnPrefsLoadedListener mListener;
     }
 
+    private static class LoadBinaryPreferences implements Callable<SharedPreferences> {
+        public LoadBinaryPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
+            mContext = context;
+            mPrefsName = prefsName;
+            mListener = listener;
+        }
+
+        @Override
+        public SharedPreferences call() {
+            final File file = getBinaryPreferencesFile(mContext, mPrefsName);
+            final SharedPreferences ret;
+            // Two instances for one file would each append to it without seeing the other's values
+            synchronized (sBinaryPreferences) {
+                final BinaryPreferences loaded = sBinaryPreferences.get(file);
+                if (null != loaded) {
+                    ret = loaded;
+                } else {
+                    final SharedPreferences legacy = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
+                    final BinaryPreferences created = new BinaryPreferences(file, legacy);
+                    sBinaryPreferences.put(file, created);
+                    ret = created;
+                }
+            }
+            if (null != mListener) {
+                mListener.onPrefsLoaded(ret);
+            }
+            return ret;
+        }
+
+        private final Context mContext;
+        private final String mPrefsName;
+        private final OnPrefsLoadedListener mListener;
+    }
+
     private final Executor mExecutor;
+
+    private static final Map<File, BinaryPreferences> sBinaryPreferences = new HashMap<File, BinaryPreferences>();
 }
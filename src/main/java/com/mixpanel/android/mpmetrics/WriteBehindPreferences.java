@@ -0,0 +1,283 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.PersistenceStatsListener;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects edits to a single SharedPreferences file, and writes them together.
+ *
+ * With a write window of zero, every edit is applied right away, just like calling apply() on
+ * an Editor. Otherwise edits made within the window are coalesced, and written with a single
+ * commit() on a background thread. Unlike apply(), that never leaves work for QueuedWork, so
+ * Activity.onPause() doesn't wait for our writes to reach the disk.
+ *
+ * Reads go straight to SharedPreferences, so callers should writeAll() before reading values
+ * that may have pending edits.
+ */
+@SuppressLint("CommitPrefEdits")
+/* package */ class WriteBehindPreferences {
+
+    /**
+     * @param name identifies the file to a PersistenceStatsListener
+     * @param preferences the file to write
+     * @param writeWindowMillis how long edits are held to be coalesced, or 0 to apply every edit right away
+     * @param config source of the PersistenceStatsListener, or null for none
+     */
+    public WriteBehindPreferences(String name, Future<SharedPreferences> preferences, long writeWindowMillis, MPConfig config) {
+        mName = name;
+        mPreferences = preferences;
+        mWriteWindowMillis = writeWindowMillis;
+        mConfig = config;
+    }
+
+    public void putString(String key, String value) {
+        edit(key, value);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        edit(key, value);
+    }
+
+    public void putInt(String key, int value) {
+        edit(key, value);
+    }
+
+    public void putLong(String key, long value) {
+        edit(key, value);
+    }
+
+    public void remove(String key) {
+        edit(key, REMOVED);
+    }
+
+    // Sets several values as a single edit
+    public void putAll(Map<String, ?> values) {
+        synchronized (mPendingLock) {
+            mPending.putAll(values);
+            mPendingChanges++;
+        }
+        scheduleWrite();
+    }
+
+    // Replaces everything in the file with the given values, as a single edit
+    public void replaceAll(Map<String, ?> values) {
+        synchronized (mPendingLock) {
+            mPending.clear();
+            mPending.putAll(values);
+            mPendingClear = true;
+            mPendingChanges++;
+        }
+        scheduleWrite();
+    }
+
+    // Removes every value, including those set before the call but not yet written
+    public void clear() {
+        synchronized (mPendingLock) {
+            mPending.clear();
+            mPendingClear = true;
+            mPendingChanges++;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Writes any pending edits now, on the calling thread.
+     *
+     * @param commit true to commit() the edits and wait for them to reach the disk,
+     *     false to apply() them and return once they are visible to readers
+     */
+    public void write(boolean commit) {
+        synchronized (mWriteLock) {
+            final Map<String, Object> edits;
+            final boolean clear;
+            final int changes;
+            synchronized (mPendingLock) {
+                mWriteScheduled = false;
+                if (mPendingChanges == 0) {
+                    markWritten();
+                    return;
+                }
+                edits = mPending;
+                clear = mPendingClear;
+                changes = mPendingChanges;
+                mPending = new LinkedHashMap<String, Object>();
+                mPendingClear = false;
+                mPendingChanges = 0;
+            }
+
+            try {
+                final SharedPreferences.Editor editor = mPreferences.get().edit();
+                if (clear) {
+                    editor.clear();
+                }
+                for (final Map.Entry<String, Object> edit : edits.entrySet()) {
+                    final String key = edit.getKey();
+                    final Object value = edit.getValue();
+                    if (value == REMOVED) {
+                        editor.remove(key);
+                    } else if (value instanceof Boolean) {
+                        editor.putBoolean(key, (Boolean) value);
+                    } else if (value instanceof Integer) {
+                        editor.putInt(key, (Integer) value);
+                    } else if (value instanceof Long) {
+                        editor.putLong(key, (Long) value);
+                    } else {
+                        editor.putString(key, (String) value);
+                    }
+                }
+                if (commit) {
+                    editor.commit();
+                } else {
+                    editor.apply();
+                }
+            } catch (final ExecutionException e) {
+                MPLog.e(LOGTAG, "Cannot write " + mName + " shared preferences.", e.getCause());
+                return;
+            } catch (final InterruptedException e) {
+                MPLog.e(LOGTAG, "Cannot write " + mName + " shared preferences.", e);
+                return;
+            } finally {
+                synchronized (mPendingLock) {
+                    markWritten();
+                }
+            }
+
+            final PersistenceStatsListener listener = null == mConfig ? null : mConfig.getPersistenceStatsListener();
+            if (null != listener) {
+                listener.onPreferencesWritten(mName, changes);
+            }
+        }
+    }
+
+    /**
+     * Applies the pending edits of every file, on the calling thread, so reads see them.
+     */
+    public static void writeAll() {
+        final WriteBehindPreferences[] dirty;
+        synchronized (sDirty) {
+            if (sDirty.isEmpty()) {
+                return;
+            }
+            dirty = sDirty.toArray(new WriteBehindPreferences[sDirty.size()]);
+        }
+        for (final WriteBehindPreferences preferences : dirty) {
+            preferences.write(false);
+        }
+    }
+
+    /**
+     * Commits the pending edits of every file on the background writer, without waiting for
+     * the write window. Used when the app goes to the background and may soon be killed.
+     */
+    public static void writeAllSoon() {
+        getWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                final WriteBehindPreferences[] dirty;
+                synchronized (sDirty) {
+                    dirty = sDirty.toArray(new WriteBehindPreferences[sDirty.size()]);
+                }
+                for (final WriteBehindPreferences preferences : dirty) {
+                    preferences.write(true);
+                }
+            }
+        });
+    }
+
+    /**
+     * The single background thread that writes preferences. Tasks submitted without a delay
+     * run in the order they were submitted.
+     */
+    public static ScheduledThreadPoolExecutor getWriter() {
+        synchronized (sWriterLock) {
+            if (null == sWriter) {
+                final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "com.mixpanel.android.PreferencesWriter");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+                executor.allowCoreThreadTimeOut(true);
+                sWriter = executor;
+            }
+            return sWriter;
+        }
+    }
+
+    private void edit(String key, Object value) {
+        synchronized (mPendingLock) {
+            mPending.put(key, value);
+            mPendingChanges++;
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (mWriteWindowMillis <= 0) {
+            write(false);
+            return;
+        }
+
+        synchronized (mPendingLock) {
+            if (mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = true;
+            synchronized (sDirty) {
+                sDirty.add(this);
+            }
+        }
+        getWriter().schedule(new Runnable() {
+            @Override
+            public void run() {
+                write(true);
+            }
+        }, mWriteWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // A file stays in sDirty from the moment a write is scheduled until the write has finished,
+    // so writeAll() waits for writes in progress too. It is only removed if no newer write has
+    // been scheduled meanwhile. Must hold mPendingLock, which always comes before sDirty.
+    private void markWritten() {
+        if (!mWriteScheduled && mPendingChanges == 0) {
+            synchronized (sDirty) {
+                sDirty.remove(this);
+            }
+        }
+    }
+
+    private final String mName;
+    private final Future<SharedPreferences> mPreferences;
+    private final long mWriteWindowMillis;
+    private final MPConfig mConfig;
+    private final Object mPendingLock = new Object();
+    private final Object mWriteLock = new Object(); // Held while writing, so writes reach SharedPreferences in order
+    private Map<String, Object> mPending = new LinkedHashMap<String, Object>(); // guarded by mPendingLock
+    private boolean mPendingClear = false; // guarded by mPendingLock
+    private int mPendingChanges = 0; // guarded by mPendingLock
+    private boolean mWriteScheduled = false; // guarded by mPendingLock
+
+    private static final Object REMOVED = new Object();
+    private static final Set<WriteBehindPreferences> sDirty = new HashSet<WriteBehindPreferences>(); // files with a scheduled write
+    private static ScheduledThreadPoolExecutor sWriter; // created on first use, see getWriter()
+    private static final Object sWriterLock = new Object();
+
+    private static final String LOGTAG = "MixpanelAPI.WriteBehind";
+}
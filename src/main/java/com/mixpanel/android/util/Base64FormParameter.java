@@ -0,0 +1,44 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request parameter holding text that is posted as the form encoded Base64 of its UTF-8 bytes.
+ *
+ * HttpService writes it to the connection through a small fixed buffer, so the payload never exists
+ * in memory as a Base64 string, a form encoded string or a byte array. toString() still returns
+ * the Base64 text, for logging and for tests that inspect request parameters.
+ */
+public class Base64FormParameter implements RemoteService.StreamingParameter {
+
+    public Base64FormParameter(String text) {
+        mText = text;
+        mEncodedLength = -1;
+    }
+
+    @Override
+    public int getEncodedLength() {
+        if (mEncodedLength < 0) {
+            final FormEncoder counter = new FormEncoder(null, true);
+            counter.encode(mText);
+            mEncodedLength = counter.getCount();
+        }
+        return mEncodedLength;
+    }
+
+    @Override
+    public void writeEncoded(OutputStream out) throws IOException {
+        final FormEncoder encoder = new FormEncoder(out, true);
+        encoder.encode(mText);
+        encoder.flush();
+    }
+
+    @Override
+    public String toString() {
+        return Base64Coder.encodeString(mText);
+    }
+
+    private final String mText;
+    private int mEncodedLength;
+}
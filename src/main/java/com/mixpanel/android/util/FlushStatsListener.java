@@ -0,0 +1,32 @@
+package com.mixpanel.android.util;
+
+/**
+ * Implement this to measure how Mixpanel schedules its uploads, see MPConfig.setFlushStatsListener
+ * and the com.mixpanel.android.MPConfig.NetworkAwareFlush and AdaptiveFlush options.
+ */
+public interface FlushStatsListener {
+
+    /**
+     * Called the first time an upload to an endpoint succeeds after the device reconnects to a
+     * network, on the thread that made the upload. Should return quickly.
+     *
+     * @param endpointUrl the url the messages were sent to
+     * @param millisSinceReconnect how long after the reconnect the upload finished
+     */
+    void onDeliveredAfterReconnect(String endpointUrl, long millisSinceReconnect);
+
+    /**
+     * Called on the Mixpanel worker thread when com.mixpanel.android.MPConfig.AdaptiveFlush
+     * changes the flush interval or the batch size, with the measurements behind the change.
+     * Batch sizes and upload results are kept for each endpoint and project token, and summed
+     * up here.
+     *
+     * @param flushIntervalMillis how long queued messages now wait before a flush
+     * @param batchSize the most messages now sent in one request to the endpoint with the smallest batches
+     * @param enqueuedPerMinute the recent rate messages have been queued at
+     * @param batchLatencyMillis the recent average time to upload one batch to the slowest endpoint, or -1 if none have been sent
+     * @param successRate the recent fraction of batches uploaded successfully to the most successful endpoint, from 0 to 1
+     */
+    void onFlushScheduleChanged(long flushIntervalMillis, int batchSize, double enqueuedPerMinute,
+                                long batchLatencyMillis, double successRate);
+}
@@ -0,0 +1,137 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Form encodes the UTF-8 bytes of text, optionally Base64 encoding them first, one byte at a time
+ * through a small fixed buffer. With a null output stream it only counts the bytes that would
+ * have been written. Output matches what Uri.encode would produce for the same input.
+ */
+/* package */ class FormEncoder {
+    public FormEncoder(OutputStream out, boolean base64) {
+        mOut = out;
+        mBase64 = base64;
+        mBuffer = null == out ? null : new byte[BUFFER_SIZE];
+    }
+
+    public void encode(String text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            int codePoint = c;
+            if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+                    i++;
+                } else {
+                    codePoint = '?'; // Same replacement String.getBytes() uses for unpaired surrogates
+                }
+            }
+
+            if (codePoint < 0x80) {
+                addByte(codePoint);
+            } else if (codePoint < 0x800) {
+                addByte(0xc0 | (codePoint >> 6));
+                addByte(0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                addByte(0xe0 | (codePoint >> 12));
+                addByte(0x80 | ((codePoint >> 6) & 0x3f));
+                addByte(0x80 | (codePoint & 0x3f));
+            } else {
+                addByte(0xf0 | (codePoint >> 18));
+                addByte(0x80 | ((codePoint >> 12) & 0x3f));
+                addByte(0x80 | ((codePoint >> 6) & 0x3f));
+                addByte(0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        if (mGroupSize == 1) {
+            addChar(BASE64[(mGroup >> 2) & 0x3f]);
+            addChar(BASE64[(mGroup << 4) & 0x3f]);
+            addChar('=');
+            addChar('=');
+        } else if (mGroupSize == 2) {
+            addChar(BASE64[(mGroup >> 10) & 0x3f]);
+            addChar(BASE64[(mGroup >> 4) & 0x3f]);
+            addChar(BASE64[(mGroup << 2) & 0x3f]);
+            addChar('=');
+        }
+        mGroup = 0;
+        mGroupSize = 0;
+    }
+
+    public void flush() throws IOException {
+        if (null != mOut && mPosition > 0) {
+            mOut.write(mBuffer, 0, mPosition);
+            mPosition = 0;
+        }
+        if (null != mError) {
+            throw mError;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    private void addByte(int b) {
+        if (!mBase64) {
+            addChar((char) (b & 0xff));
+            return;
+        }
+
+        mGroup = (mGroup << 8) | (b & 0xff);
+        mGroupSize++;
+        if (mGroupSize == 3) {
+            addChar(BASE64[(mGroup >> 18) & 0x3f]);
+            addChar(BASE64[(mGroup >> 12) & 0x3f]);
+            addChar(BASE64[(mGroup >> 6) & 0x3f]);
+            addChar(BASE64[mGroup & 0x3f]);
+            mGroup = 0;
+            mGroupSize = 0;
+        }
+    }
+
+    // Form encodes a single byte, leaving the characters Uri.encode allows as they are
+    private void addChar(char c) {
+        if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || UNRESERVED.indexOf(c) >= 0) {
+            addOutput(c);
+        } else {
+            addOutput('%');
+            addOutput(HEX[(c >> 4) & 0xf]);
+            addOutput(HEX[c & 0xf]);
+        }
+    }
+
+    private void addOutput(char c) {
+        mCount++;
+        if (null == mOut || null != mError) {
+            return;
+        }
+        if (mPosition == mBuffer.length) {
+            try {
+                mOut.write(mBuffer, 0, mPosition);
+            } catch (final IOException e) {
+                mError = e; // Reported from flush()
+                return;
+            }
+            mPosition = 0;
+        }
+        mBuffer[mPosition++] = (byte) c;
+    }
+
+    private final OutputStream mOut;
+    private final boolean mBase64;
+    private final byte[] mBuffer;
+    private int mPosition = 0;
+    private int mCount = 0;
+    private int mGroup = 0;
+    private int mGroupSize = 0;
+    private IOException mError = null;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final String UNRESERVED = "_-!.~'()*";
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+}
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -14,16 +15,47 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
- * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
+ * An HTTP utility class for internal use in the Mixpanel library. Instances hold no mutable state
+ * and may be shared between threads; the state shared by all instances is synchronized.
+ *
+ * Every request, however it is made, goes through performRequest(Request), so subclasses that
+ * want to intercept requests only need to override that method.
+ *
+ * Connections are kept alive and reused through HttpURLConnection's connection pool. Requests
+ * passed to submitRequest are sent on a small shared pool of threads, no larger than the
+ * connection pool, so concurrent requests don't outgrow the set of kept-alive connections.
  */
-public class HttpService implements RemoteService {
+public class HttpService implements RemoteTransport {
+
+    public HttpService() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, or 0 to wait indefinitely
+     * @param readTimeout milliseconds to wait for each read of the response, or 0 to wait indefinitely
+     */
+    public HttpService(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
 
     private static boolean sIsMixpanelBlocked;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
@@ -92,6 +124,102 @@ public class HttpService implements RemoteService {
 
     @Override
     public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        return performRequest(new Request(endpointUrl, params, socketFactory, false, null, Request.NO_DEADLINE));
+    }
+
+    @Override
+    public byte[] performCompressedRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory, UploadStatsListener statsListener)
+            throws ServiceUnavailableException, IOException {
+        return performRequest(new Request(endpointUrl, params, socketFactory, true, statsListener, Request.NO_DEADLINE));
+    }
+
+    @Override
+    public void submitRequest(final Request request, final ResponseCallback callback) {
+        getRequestExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] response;
+                try {
+                    response = performRequest(request);
+                } catch (final ServiceUnavailableException e) {
+                    callback.onFailure(e);
+                    return;
+                } catch (final IOException e) {
+                    callback.onFailure(e);
+                    return;
+                } catch (final RuntimeException e) {
+                    callback.onFailure(e);
+                    return;
+                } catch (final OutOfMemoryError e) {
+                    callback.onFailure(new OutOfMemoryException("Out of memory sending request to " + request.getEndpointUrl(), e));
+                    return;
+                }
+                callback.onResponse(response);
+            }
+        });
+    }
+
+    @Override
+    public byte[] performRequest(Request request) throws ServiceUnavailableException, IOException {
+        if (request.isCompressed() && null != request.getParams() && !isCompressionRejected(request.getEndpointUrl())) {
+            return sendCompressedRequest(request);
+        }
+        return sendRequest(request, null, null);
+    }
+
+    private byte[] sendCompressedRequest(Request request) throws ServiceUnavailableException, IOException {
+        final String endpointUrl = request.getEndpointUrl();
+        final UploadStatsListener statsListener = request.getStatsListener();
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        final int uncompressedLength = writeFormBody(request.getParams(), gzip);
+        gzip.close();
+        final byte[] body = compressed.toByteArray();
+        MPLog.v(LOGTAG, "Compressed request to " + endpointUrl + " from " + uncompressedLength + " to " + body.length + " bytes");
+        if (null != statsListener) {
+            try {
+                statsListener.onCompressedUpload(endpointUrl, uncompressedLength, body.length);
+            } catch (RuntimeException e) {
+                MPLog.w(LOGTAG, "UploadStatsListener should not throw exceptions", e);
+            }
+        }
+
+        try {
+            return sendRequest(request, body, GZIP_ENCODING);
+        } catch (final CompressionRejectedException e) {
+            MPLog.w(LOGTAG, endpointUrl + " does not accept compressed requests, sending uncompressed");
+            synchronized (sCompressionRejectedEndpoints) {
+                sCompressionRejectedEndpoints.add(endpointUrl);
+            }
+            if (null != statsListener) {
+                try {
+                    statsListener.onCompressionRejected(endpointUrl);
+                } catch (RuntimeException listenerException) {
+                    MPLog.w(LOGTAG, "UploadStatsListener should not throw exceptions", listenerException);
+                }
+            }
+            return sendRequest(request, null, null);
+        }
+    }
+
+    private static boolean isCompressionRejected(String endpointUrl) {
+        synchronized (sCompressionRejectedEndpoints) {
+            return sCompressionRejectedEndpoints.contains(endpointUrl);
+        }
+    }
+
+    // If body is null, the request's params are written as a form encoded body. Otherwise body is
+    // sent as is, with the given Content-Encoding, and must hold the encoded params. Timeouts are
+    // shortened to fit before the request's deadline, and no attempt is started after it. A non null
+    // idempotency key is sent in an Idempotency-Key header, so the server can recognize a repeat.
+    private byte[] sendRequest(Request request, byte[] body, String contentEncoding)
+            throws ServiceUnavailableException, IOException {
+        final String endpointUrl = request.getEndpointUrl();
+        final Map<String, Object> params = request.getParams();
+        final SSLSocketFactory socketFactory = request.getSocketFactory();
+        final long deadline = request.getDeadline();
+        final String idempotencyKey = request.getIdempotencyKey();
         MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
 
         byte[] response = null;
@@ -100,9 +228,26 @@ public class HttpService implements RemoteService {
         // libraries- The underlying library will attempt to reuse stale connections,
         // meaning the second (or every other) attempt to connect fails with an EOFException.
         // Apparently this nasty retry logic is the current state of the workaround art.
+        // The first retry is immediate, since it only replaces the stale pooled connection. An
+        // EOF after that means the server or network is dropping connections, so later retries
+        // wait a little longer each time rather than hammering it.
         int retries = 0;
         boolean succeeded = false;
         while (retries < 3 && !succeeded) {
+            long remaining = deadline == Request.NO_DEADLINE ? Long.MAX_VALUE : deadline - SystemClock.elapsedRealtime();
+            if (retries > 1) {
+                final long delay = EOF_RETRY_DELAY_MILLIS << (retries - 2);
+                if (delay >= remaining) {
+                    remaining = 0;
+                } else {
+                    SystemClock.sleep(delay);
+                    remaining -= delay;
+                }
+            }
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Request to " + endpointUrl + " did not finish before its deadline");
+            }
+
             InputStream in = null;
             OutputStream out = null;
             BufferedOutputStream bout = null;
@@ -115,21 +260,26 @@ public class HttpService implements RemoteService {
                     ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
                 }
 
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(30000);
+                connection.setConnectTimeout(timeoutBefore(mConnectTimeout, remaining));
+                connection.setReadTimeout(timeoutBefore(mReadTimeout, remaining));
+                if (null != idempotencyKey) {
+                    connection.setRequestProperty(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+                }
                 if (null != params) {
-                    Uri.Builder builder = new Uri.Builder();
-                    for (Map.Entry<String, Object> param : params.entrySet()) {
-                        builder.appendQueryParameter(param.getKey(), param.getValue().toString());
-                    }
-                    String query = builder.build().getEncodedQuery();
-
-                    connection.setFixedLengthStreamingMode(query.getBytes().length);
+                    connection.setFixedLengthStreamingMode(null == body ? writeFormBody(params, null) : body.length);
                     connection.setDoOutput(true);
                     connection.setRequestMethod("POST");
+                    if (null != contentEncoding) {
+                        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                        connection.setRequestProperty("Content-Encoding", contentEncoding);
+                    }
                     out = connection.getOutputStream();
                     bout = new BufferedOutputStream(out);
-                    bout.write(query.getBytes("UTF-8"));
+                    if (null == body) {
+                        writeFormBody(params, bout);
+                    } else {
+                        bout.write(body);
+                    }
                     bout.flush();
                     bout.close();
                     bout = null;
@@ -147,6 +297,8 @@ public class HttpService implements RemoteService {
             } catch (final IOException e) {
                 if (connection != null && connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
                     throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
+                } else if (connection != null && null != contentEncoding && isEncodingRejection(connection)) {
+                    throw new CompressionRejectedException(connection.getResponseCode());
                 } else {
                     throw e;
                 }
@@ -158,7 +310,10 @@ public class HttpService implements RemoteService {
                     try { out.close(); } catch (final IOException e) {}
                 if (null != in)
                     try { in.close(); } catch (final IOException e) {}
-                if (null != connection)
+                // A connection whose response was read to the end goes back to the keep-alive
+                // pool, so the next request to the same host skips the TCP and TLS handshakes.
+                // disconnect() would close the socket instead.
+                if (null != connection && !succeeded)
                     connection.disconnect();
             }
         }
@@ -168,6 +323,91 @@ public class HttpService implements RemoteService {
         return response;
     }
 
+    // A timeout of 0 means no timeout, so an unlimited timeout still has to be cut down to the deadline
+    private static int timeoutBefore(int timeout, long remaining) {
+        if (remaining >= Integer.MAX_VALUE) {
+            return timeout;
+        }
+        return (int) (timeout <= 0 ? remaining : Math.min(timeout, remaining));
+    }
+
+    private static synchronized Executor getRequestExecutor() {
+        if (null == sRequestExecutor) {
+            final int threads = Math.max(1, Integer.getInteger("http.maxConnections", DEFAULT_MAX_CONNECTIONS));
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "com.mixpanel.android.HttpService");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sRequestExecutor = executor;
+        }
+        return sRequestExecutor;
+    }
+
+    // Writes params as an application/x-www-form-urlencoded body, the same encoding Uri.Builder uses.
+    // StreamingParameters write themselves, so large payloads are never copied into a single
+    // query string. With a null output stream, only returns the length of the body.
+    private static int writeFormBody(Map<String, Object> params, OutputStream out) throws IOException {
+        int length = 0;
+        boolean first = true;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            final StringBuilder prefix = new StringBuilder();
+            if (!first) {
+                prefix.append('&');
+            }
+            first = false;
+            prefix.append(Uri.encode(param.getKey())).append('=');
+
+            final Object value = param.getValue();
+            final RemoteService.StreamingParameter streamingValue;
+            if (value instanceof RemoteService.StreamingParameter) {
+                streamingValue = (RemoteService.StreamingParameter) value;
+            } else {
+                streamingValue = null;
+                prefix.append(Uri.encode(value.toString()));
+            }
+
+            // Uri.encode output is plain ASCII
+            final byte[] prefixBytes = prefix.toString().getBytes("UTF-8");
+            length += prefixBytes.length;
+            if (null != out) {
+                out.write(prefixBytes);
+            }
+            if (null != streamingValue) {
+                length += streamingValue.getEncodedLength();
+                if (null != out) {
+                    streamingValue.writeEncoded(out);
+                }
+            }
+        }
+        return length;
+    }
+
+    // Only 415 Unsupported Media Type, or a client error whose Accept-Encoding header leaves out
+    // gzip (RFC 7694), says the encoding was the problem. Other errors, like 400 for a malformed
+    // batch or 413 for an oversized one, fail like uncompressed requests, and are retried later.
+    private static boolean isEncodingRejection(HttpURLConnection connection) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            return true;
+        }
+        final String acceptEncoding = connection.getHeaderField("Accept-Encoding");
+        return responseCode >= 400 && responseCode < 500 && null != acceptEncoding &&
+                !acceptEncoding.toLowerCase(Locale.US).contains(GZIP_ENCODING);
+    }
+
+    private static class CompressionRejectedException extends IOException {
+        public CompressionRejectedException(int responseCode) {
+            super("Compressed request rejected with HTTP " + responseCode);
+        }
+    }
+
     private static byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -183,5 +423,21 @@ public class HttpService implements RemoteService {
         return buffer.toByteArray();
     }
 
+    // Endpoints that rejected a gzip request with 415, or with a 4xx whose Accept-Encoding
+    // leaves out gzip, for the life of the process. Other errors don't stop compression.
+    private static final Set<String> sCompressionRejectedEndpoints = new HashSet<String>();
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+
+    private static ThreadPoolExecutor sRequestExecutor; // created on first use, see getRequestExecutor()
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    // HttpURLConnection keeps this many idle connections per host unless http.maxConnections says otherwise
+    private static final int DEFAULT_MAX_CONNECTIONS = 5;
+    private static final long EOF_RETRY_DELAY_MILLIS = 50;
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final String GZIP_ENCODING = "gzip";
     private static final String LOGTAG = "MixpanelAPI.Message";
 }
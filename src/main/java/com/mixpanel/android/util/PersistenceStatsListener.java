@@ -0,0 +1,18 @@
+package com.mixpanel.android.util;
+
+/**
+ * Implement this to count the writes Mixpanel makes to its SharedPreferences files, see
+ * MPConfig.setPersistenceStatsListener and the com.mixpanel.android.MPConfig.PersistenceWriteWindow option.
+ */
+public interface PersistenceStatsListener {
+
+    /**
+     * Called each time Mixpanel writes to one of its preferences files. This is called on the
+     * thread that made the write, which is a background thread when edits are coalesced, and
+     * should return quickly.
+     *
+     * @param preferencesName which file was written: "identity", "timeEvents" or "mixpanel"
+     * @param changes the number of edits included in the write. More than one means edits were coalesced.
+     */
+    void onPreferencesWritten(String preferencesName, int changes);
+}
@@ -4,7 +4,13 @@ import android.content.Context;
 
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -17,22 +23,70 @@ public interface RemoteService {
     byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException;
 
+    /**
+     * A parameter value that can write its form encoded form straight to a request body.
+     * Other parameter values are sent as their form encoded toString().
+     */
+    interface StreamingParameter {
+        /**
+         * @return the number of bytes writeEncoded will write
+         */
+        int getEncodedLength();
+
+        /**
+         * Writes the form encoded value. May be called more than once if a request is retried.
+         */
+        void writeEncoded(OutputStream out) throws IOException;
+    }
+
     class ServiceUnavailableException extends Exception {
         public ServiceUnavailableException(String message, String strRetryAfter) {
             super(message);
-            int retry;
-            try {
-                retry = Integer.parseInt(strRetryAfter);
-            } catch (NumberFormatException e) {
-                retry = 0;
-            }
-            mRetryAfter = retry;
+            mRetryAfter = parseRetryAfter(strRetryAfter, System.currentTimeMillis());
         }
 
         public int getRetryAfter() {
             return mRetryAfter;
         }
 
+        /**
+         * Parses a Retry-After header, which holds either a number of seconds or an HTTP-date.
+         *
+         * @return the number of seconds to wait after now, or 0 if the header is missing, malformed, or in the past
+         */
+        public static int parseRetryAfter(String strRetryAfter, long nowMillis) {
+            if (null == strRetryAfter) {
+                return 0;
+            }
+            final String value = strRetryAfter.trim();
+            try {
+                return Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                // Not seconds, try a date
+            }
+
+            for (final String format : HTTP_DATE_FORMATS) {
+                final SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+                dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+                dateFormat.setLenient(false);
+                try {
+                    final Date date = dateFormat.parse(value);
+                    final long seconds = (date.getTime() - nowMillis + 999) / 1000;
+                    return (int) Math.max(0, Math.min(Integer.MAX_VALUE, seconds));
+                } catch (ParseException e) {
+                    // Try the next format
+                }
+            }
+            return 0;
+        }
+
         private final int mRetryAfter;
+
+        // RFC 1123, and the obsolete RFC 850 and asctime forms, which HTTP/1.1 clients must accept
+        private static final String[] HTTP_DATE_FORMATS = {
+                "EEE, dd MMM yyyy HH:mm:ss zzz",
+                "EEEE, dd-MMM-yy HH:mm:ss zzz",
+                "EEE MMM d HH:mm:ss yyyy",
+        };
     }
 }
@@ -0,0 +1,139 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * A RemoteService that can also compress requests, give them deadlines and idempotency keys,
+ * and send them without blocking the caller.
+ *
+ * RemoteService implementations that don't implement this interface still work; the library
+ * sends their requests uncompressed, one at a time, through RemoteService.performRequest.
+ */
+public interface RemoteTransport extends RemoteService {
+    /**
+     * Like performRequest, but sends the form encoded params gzip compressed. If the endpoint
+     * rejects compressed requests, the request is sent again uncompressed and later requests
+     * to the same endpoint are not compressed.
+     */
+    byte[] performCompressedRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory, UploadStatsListener statsListener)
+            throws ServiceUnavailableException, IOException;
+
+    /**
+     * Performs a request, honoring its compression, deadline and idempotency key. If the request
+     * has a deadline and can't finish by then, throws a SocketTimeoutException.
+     *
+     * @return the response body, or null if the request could not be completed for an
+     *     unexpected reason, like performRequest
+     */
+    byte[] performRequest(Request request) throws ServiceUnavailableException, IOException;
+
+    /**
+     * Sends a request without waiting for it. Exactly one of the callback's methods is called
+     * when the request finishes, on a thread owned by the service.
+     */
+    void submitRequest(Request request, ResponseCallback callback);
+
+    /**
+     * Receives the result of a request passed to submitRequest.
+     */
+    interface ResponseCallback {
+        /**
+         * @param response the response body, or null if the request could not be completed
+         *     for an unexpected reason, like performRequest
+         */
+        void onResponse(byte[] response);
+
+        /**
+         * @param failure a ServiceUnavailableException or IOException, as thrown by
+         *     performRequest, an OutOfMemoryException, or a RuntimeException the request threw
+         */
+        void onFailure(Exception failure);
+    }
+
+    /**
+     * Passed to ResponseCallback.onFailure when a request ran out of memory, most likely because
+     * its payload is too large. Unlike an IOException, sending the same payload again won't help.
+     */
+    class OutOfMemoryException extends Exception {
+        public OutOfMemoryException(String message, OutOfMemoryError cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * A request for performRequest or submitRequest: the arguments of the RemoteService
+     * performRequest, whether to compress, a deadline and an optional idempotency key.
+     */
+    class Request {
+        /**
+         * @param compressed whether to send the params gzip compressed, as performCompressedRequest does
+         * @param statsListener told about compressed requests, may be null
+         * @param deadline the SystemClock.elapsedRealtime() the request must finish by, or NO_DEADLINE
+         */
+        public Request(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory,
+                       boolean compressed, UploadStatsListener statsListener, long deadline) {
+            this(endpointUrl, params, socketFactory, compressed, statsListener, deadline, null);
+        }
+
+        /**
+         * @param idempotencyKey identifies the request's payload, and is the same each time the
+         *     same payload is sent, so the server can ignore repeats. May be null.
+         */
+        public Request(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory,
+                       boolean compressed, UploadStatsListener statsListener, long deadline, String idempotencyKey) {
+            mEndpointUrl = endpointUrl;
+            mParams = params;
+            mSocketFactory = socketFactory;
+            mCompressed = compressed;
+            mStatsListener = statsListener;
+            mDeadline = deadline;
+            mIdempotencyKey = idempotencyKey;
+        }
+
+        public String getEndpointUrl() {
+            return mEndpointUrl;
+        }
+
+        public Map<String, Object> getParams() {
+            return mParams;
+        }
+
+        public SSLSocketFactory getSocketFactory() {
+            return mSocketFactory;
+        }
+
+        public boolean isCompressed() {
+            return mCompressed;
+        }
+
+        public UploadStatsListener getStatsListener() {
+            return mStatsListener;
+        }
+
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        public boolean hasDeadline() {
+            return mDeadline != NO_DEADLINE;
+        }
+
+        public String getIdempotencyKey() {
+            return mIdempotencyKey;
+        }
+
+        private final String mEndpointUrl;
+        private final Map<String, Object> mParams;
+        private final SSLSocketFactory mSocketFactory;
+        private final boolean mCompressed;
+        private final UploadStatsListener mStatsListener;
+        private final long mDeadline;
+        private final String mIdempotencyKey;
+
+        public static final long NO_DEADLINE = Long.MAX_VALUE;
+    }
+}
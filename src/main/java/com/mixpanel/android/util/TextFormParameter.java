@@ -0,0 +1,41 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request parameter holding text that is posted as its form encoded UTF-8 bytes, written
+ * to the connection through a small fixed buffer like {@link Base64FormParameter}.
+ */
+public class TextFormParameter implements RemoteService.StreamingParameter {
+
+    public TextFormParameter(String text) {
+        mText = text;
+        mEncodedLength = -1;
+    }
+
+    @Override
+    public int getEncodedLength() {
+        if (mEncodedLength < 0) {
+            final FormEncoder counter = new FormEncoder(null, false);
+            counter.encode(mText);
+            mEncodedLength = counter.getCount();
+        }
+        return mEncodedLength;
+    }
+
+    @Override
+    public void writeEncoded(OutputStream out) throws IOException {
+        final FormEncoder encoder = new FormEncoder(out, false);
+        encoder.encode(mText);
+        encoder.flush();
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+
+    private final String mText;
+    private int mEncodedLength;
+}
@@ -0,0 +1,26 @@
+package com.mixpanel.android.util;
+
+/**
+ * Implement this to receive statistics about compressed uploads to Mixpanel, see
+ * MPConfig.setUploadStatsListener and the com.mixpanel.android.MPConfig.CompressUploads option.
+ */
+public interface UploadStatsListener {
+
+    /**
+     * Called on the Mixpanel worker thread each time a compressed request body is built.
+     *
+     * @param endpointUrl the url the request is sent to
+     * @param uncompressedBytes the size of the form encoded body before compression
+     * @param compressedBytes the size of the body actually sent
+     */
+    void onCompressedUpload(String endpointUrl, int uncompressedBytes, int compressedBytes);
+
+    /**
+     * Called when an endpoint rejects a compressed request with 415 Unsupported Media Type, or
+     * with an Accept-Encoding header that leaves out gzip. The request is sent again
+     * uncompressed, and later requests to the endpoint are not compressed.
+     *
+     * @param endpointUrl the url that rejected the compressed request
+     */
+    void onCompressionRejected(String endpointUrl);
+}